@@ -0,0 +1,206 @@
+package tech.sozonov.blog;
+//{{{ Imports
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static tech.sozonov.blog.Blog.*;
+
+//}}}
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Bench {
+    /// JMH benchmarks of the render and ingestion hot paths. Run them with `make bench`, which
+    /// adds `-prof gc` for the allocation rates. Docs are parameterized by the number of their
+    /// paragraphs (each with an image), sites by the number of their docs
+
+//{{{ Doc benchmarks
+
+@State(Scope.Thread)
+public static class DocState {
+    @Param({"10", "100", "1000"})
+    public int paragraphs;
+
+    Blog blog;
+    String newDoc; // an uploaded `i.html`
+    String oldDoc; // the same doc as rendered by a previous run
+    LocalFiles localFiles;
+    Ingestion ing;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        silence();
+        blog = new Blog(new Test.MockFileSys());
+        for (int i = 0; i < fixedCoreFiles.length; i++) {
+            blog.coreVersions[i] = fixedCoreFiles[i];
+        }
+        blog.globalVersions.put("graph", "graph-2.js");
+        newDoc = SiteGen.makeDoc(paragraphs, paragraphs, true, "graph", 1);
+        localFiles = new LocalFiles();
+        localFiles.versions.put(new UnvName("local.js"), "local-2.js");
+        for (int i = 0; i < paragraphs; i++) {
+            localFiles.versions.put(new UnvName("img" + i + ".png"), "img" + i + "-2.png");
+        }
+        ing = new Ingestion();
+        ing.allSubfs.add(new Subfolder("bench/doc"));
+        ing.finalize();
+        oldDoc = render(blog.buildDocument(create(), "", "2024-01-01", ing));
+    }
+
+    CreateUpdate create() {
+        return new CreateUpdate(new Subfolder("bench.doc"), new Subfolder("bench/doc"),
+                                localFiles, newDoc);
+    }
+
+    CreateUpdate coreUpdate() {
+        return new CreateUpdate(null, new Subfolder("bench/doc"), localFiles, false);
+    }
+}
+
+
+@Benchmark
+public ByteBuffer[] buildDocumentCreate(DocState st) {
+    return st.blog.buildDocument(st.create(), "", "2024-01-02", st.ing);
+}
+
+
+@Benchmark
+public ByteBuffer[] buildDocumentUpdate(DocState st) {
+    return st.blog.buildDocument(st.coreUpdate(), st.oldDoc, "2024-01-02", st.ing);
+}
+
+
+@Benchmark
+public L<Substitution> parseSrcAttribs(DocState st) {
+    return Blog.parseSrcAttribs(st.newDoc, "img");
+}
+
+
+@Benchmark
+public L<Substitution> parseBodySubstitutions(DocState st) {
+    return Blog.parseBodySubstitutions(st.newDoc, "<!-- Dates -->", st.localFiles);
+}
+
+//}}}
+//{{{ Site benchmarks
+
+@State(Scope.Thread)
+public static class SiteState {
+    @Param({"100", "10000", "100000"})
+    public int docs;
+
+    Ingestion ing;
+    L<FileInfo> dirListing; // a dir with a few versions of many files, like the blog root
+    UnvName bumped;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        silence();
+        ing = new Ingestion();
+        for (int i = 0; i < docs; i++) {
+            ing.allSubfs.add(new Subfolder("topic" + (i % 17) + "/sub" + (i % 101) + "/doc" + i));
+        }
+        dirListing = new L();
+        for (int i = 0; i < docs; i++) {
+            dirListing.add(new FileInfo("file" + (i / 4) + ((i % 4 == 0) ? "" : "-" + (i % 4 + 1))
+                                        + ".js"));
+        }
+        bumped = new UnvName("file" + (docs / 8) + ".js");
+    }
+}
+
+
+@State(Scope.Thread)
+public static class NavState {
+    /// Apart from `SiteState` so that only `navToJson` pays for the per-invocation setup
+    @Param({"100", "10000", "100000"})
+    public int docs;
+
+    Ingestion ing;
+    NavTree nav;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        silence();
+        ing = new Ingestion();
+        for (int i = 0; i < docs; i++) {
+            ing.allSubfs.add(new Subfolder("topic" + (i % 17) + "/sub" + (i % 101) + "/doc" + i));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void resetNav() {
+        /// `toJson` moves the cursors of the tree, so every call needs a fresh one
+        nav = ing.buildThematic();
+    }
+}
+
+
+@Benchmark
+public NavTree buildThematic(SiteState st) {
+    return st.ing.buildThematic();
+}
+
+
+@Benchmark
+public String navToJson(NavState st) {
+    return st.nav.toJson();
+}
+
+
+@Benchmark
+public String makeNameBumpedVersion(SiteState st) {
+    return Blog.makeNameBumpedVersion(st.bumped, st.dirListing);
+}
+
+
+@Benchmark
+public String bumpWithVersionIndex(SiteState st) {
+    return VersionIndex.of(st.dirListing).bump(st.bumped);
+}
+
+
+@Benchmark
+public void unvNames(SiteState st, org.openjdk.jmh.infra.Blackhole bh) {
+    for (FileInfo f : st.dirListing) {
+        bh.consume(new UnvName(f.name));
+    }
+}
+
+//}}}
+//{{{ Utils
+
+static String render(ByteBuffer[] parts) {
+    var result = new StringBuilder();
+    for (ByteBuffer part : parts) {
+        result.append(java.nio.charset.StandardCharsets.UTF_8.decode(part.duplicate()));
+    }
+    return result.toString();
+}
+
+
+static void silence() {
+    /// The app prints its progress, which would only measure the console
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+}
+
+//}}}
+
+}
@@ -0,0 +1,361 @@
+package tech.sozonov.blog;
+//{{{ Imports
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import static tech.sozonov.blog.Blog.*;
+
+//}}}
+
+class SiteBench {
+    /// End-to-end benchmark of whole runs on a generated site, to see where the design stops
+    /// scaling. Runs a cold first ingestion of the site, then a cold incremental run on a wave of
+    /// edits, deletes and core updates, and reports for every phase of each: wall time, peak heap
+    /// and the file operations made. A single-shot driver rather than JMH because one run at 1M
+    /// docs takes minutes and is not repeatable without regenerating the site.
+    ///
+    ///     make sitebench SITE_ARGS="--docs 100000 --fs disk"
+    ///
+    /// Options: --docs N (10000), --fs mock|disk (mock), --seed S (1), --edited 0.01,
+    /// --deleted 0.001, --keep (don't delete the temp dir of the disk fs)
+    int docs = 10000;
+    String fsKind = "mock";
+    long seed = 1;
+    double editedShare = 0.01;
+    double deletedShare = 0.001;
+    boolean keep = false;
+    PrintStream out = System.out;
+
+    public static void main(String[] args) throws IOException {
+        var bench = new SiteBench();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--docs" -> bench.docs = Integer.parseInt(args[++i]);
+                case "--fs" -> bench.fsKind = args[++i];
+                case "--seed" -> bench.seed = Long.parseLong(args[++i]);
+                case "--edited" -> bench.editedShare = Double.parseDouble(args[++i]);
+                case "--deleted" -> bench.deletedShare = Double.parseDouble(args[++i]);
+                case "--keep" -> bench.keep = true;
+                default -> throw new RuntimeException("Unknown option " + args[i]);
+            }
+        }
+        bench.run();
+    }
+
+    void run() throws IOException {
+        Path tempRoot = null;
+        FileSys inner;
+        if (fsKind.equals("disk")) {
+            tempRoot = Files.createTempDirectory("siteBench");
+            Files.createDirectories(Path.of(tempRoot + blogDir.cont)); // it exists on a real server
+            inner = new RebasedFileSys(new BlogFileSys(), tempRoot.toString());
+        } else {
+            inner = new Test.MockFileSys();
+        }
+        var fs = new CountingFileSys(inner);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the app's progress
+
+        var gen = new SiteGen(fs, docs, seed);
+        long genStart = System.nanoTime();
+        gen.generateSite();
+        out.printf("generated %d docs on the %s fs in %d ms%n", docs, fsKind,
+                   (System.nanoTime() - genStart) / 1000000);
+        measureRun("first run", fs, docs);
+
+        int touched = gen.generateUpdates(editedShare, deletedShare);
+        // All docs that include the updated global script get rebuilt too
+        measureRun("incremental run", fs, touched);
+
+        System.setOut(out);
+        if (tempRoot != null && !keep) {
+            try (Stream<Path> paths = Files.walk(tempRoot)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    void measureRun(String name, CountingFileSys fs, int uploadedDocs) {
+        /// A new Blog for each run, like a cron job, so the catalog is loaded cold
+        var blog = new Blog(fs, Settings.fromEnv());
+        var phases = new PhaseRecorder(fs);
+        blog.onPhase = phases::start;
+        long startNs = System.nanoTime();
+        blog.run();
+        double seconds = (System.nanoTime() - startNs) / 1e9;
+        out.printf("%n== %s: %.2f s, %d uploaded docs, %.0f docs/s%n",
+                   name, seconds, uploadedDocs, uploadedDocs / seconds);
+        phases.report(out);
+    }
+
+//{{{ PhaseRecorder
+
+static class PhaseRecorder {
+    /// Between two phase starts, measures the time, the peak heap and the file operations
+    private final CountingFileSys fs;
+    private String current;
+    private long startNs;
+    private Map<String, Long> startCounts;
+    private final L<String> lines = new L();
+
+    PhaseRecorder(CountingFileSys fs) {
+        this.fs = fs;
+    }
+
+    void start(String phase) {
+        long now = System.nanoTime();
+        if (current != null) {
+            Map<String, Long> counts = fs.snapshot();
+            var ops = new StringBuilder();
+            for (var e : counts.entrySet()) {
+                long diff = e.getValue() - startCounts.getOrDefault(e.getKey(), 0L);
+                if (diff > 0) {
+                    ops.append(" ").append(e.getKey()).append("=").append(diff);
+                }
+            }
+            lines.add(String.format("  %-10s %9.1f ms  peak heap %6d MB %s",
+                      current, (now - startNs) / 1e6, peakHeapMb(), ops));
+        }
+        current = phase.equals("done") ? null : phase;
+        startCounts = fs.snapshot();
+        resetPeakHeap();
+        startNs = System.nanoTime();
+    }
+
+    void report(PrintStream out) {
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    static long peakHeapMb() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes / (1024 * 1024);
+    }
+}
+
+//}}}
+//{{{ CountingFileSys
+
+static class CountingFileSys implements FileSys {
+    /// Counts the operations and the bytes, which on the disk fs are about the syscalls made
+    private final FileSys inner;
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap();
+
+    CountingFileSys(FileSys inner) {
+        this.inner = inner;
+    }
+
+    private void count(String op, long n) {
+        counts.computeIfAbsent(op, k -> new LongAdder()).add(n);
+    }
+
+    Map<String, Long> snapshot() {
+        var result = new TreeMap<String, Long>();
+        counts.forEach((k, v) -> result.put(k, v.sum()));
+        return result;
+    }
+
+    @Override
+    public boolean dirExists(Dir dir) {
+        count("exists", 1);
+        return inner.dirExists(dir);
+    }
+
+    @Override
+    public L<FileInfo> listFiles(Dir dir) {
+        count("list", 1);
+        return inner.listFiles(dir);
+    }
+
+    @Override
+    public L<Subfolder> listSubfolders(Dir dir) {
+        count("list", 1);
+        return inner.listSubfolders(dir);
+    }
+
+    @Override
+    public L<Subfolder> listSubfoldersContaining(Dir dir, String fN) {
+        count("walk", 1);
+        return inner.listSubfoldersContaining(dir, fN);
+    }
+
+    @Override
+    public String readTextFile(Dir dir, String fN) {
+        String result = inner.readTextFile(dir, fN);
+        count("read", 1);
+        count("readBytes", result.length());
+        return result;
+    }
+
+    @Override
+    public byte[] readBinaryFile(Dir dir, String fN) {
+        byte[] result = inner.readBinaryFile(dir, fN);
+        count("read", 1);
+        count("readBytes", result.length);
+        return result;
+    }
+
+    @Override
+    public ByteBuffer mapFile(Dir dir, String fN) {
+        ByteBuffer result = inner.mapFile(dir, fN);
+        count("map", 1);
+        count("readBytes", result.remaining());
+        return result;
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, String cont) {
+        count("write", 1);
+        count("writtenBytes", cont.length());
+        return inner.saveOverwriteFile(dir, fN, cont);
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+        long bytes = 0;
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+        }
+        count("write", 1);
+        count("writtenBytes", bytes);
+        return inner.saveOverwriteFile(dir, fN, parts);
+    }
+
+    @Override
+    public boolean appendToFile(Dir dir, String fN, String cont) {
+        count("append", 1);
+        count("writtenBytes", cont.length());
+        return inner.appendToFile(dir, fN, cont);
+    }
+
+    @Override
+    public boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName) {
+        count("move", 1);
+        return inner.moveFileWithRename(dir, fN, targetDir, newName);
+    }
+
+    @Override
+    public boolean deleteIfExists(Dir dir, String fN) {
+        count("delete", 1);
+        return inner.deleteIfExists(dir, fN);
+    }
+
+    @Override
+    public boolean deleteDirIfExists(Dir dir) {
+        count("deleteDir", 1);
+        return inner.deleteDirIfExists(dir);
+    }
+}
+
+//}}}
+//{{{ RebasedFileSys
+
+static class RebasedFileSys implements FileSys {
+    /// Moves the app's absolute dirs (`/var/www/...`) under a temp dir
+    private final FileSys inner;
+    private final String root;
+
+    RebasedFileSys(FileSys inner, String root) {
+        this.inner = inner;
+        this.root = root;
+    }
+
+    private Dir rebase(Dir dir) {
+        return Dir.ofString(root + dir.cont);
+    }
+
+    @Override
+    public boolean dirExists(Dir dir) {
+        return inner.dirExists(rebase(dir));
+    }
+
+    @Override
+    public L<FileInfo> listFiles(Dir dir) {
+        return inner.listFiles(rebase(dir));
+    }
+
+    @Override
+    public L<Subfolder> listSubfolders(Dir dir) {
+        return inner.listSubfolders(rebase(dir));
+    }
+
+    @Override
+    public L<Subfolder> listSubfoldersContaining(Dir dir, String fN) {
+        return inner.listSubfoldersContaining(rebase(dir), fN);
+    }
+
+    @Override
+    public String readTextFile(Dir dir, String fN) {
+        return inner.readTextFile(rebase(dir), fN);
+    }
+
+    @Override
+    public byte[] readBinaryFile(Dir dir, String fN) {
+        return inner.readBinaryFile(rebase(dir), fN);
+    }
+
+    @Override
+    public ByteBuffer mapFile(Dir dir, String fN) {
+        return inner.mapFile(rebase(dir), fN);
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, String cont) {
+        return inner.saveOverwriteFile(rebase(dir), fN, cont);
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+        return inner.saveOverwriteFile(rebase(dir), fN, parts);
+    }
+
+    @Override
+    public boolean appendToFile(Dir dir, String fN, String cont) {
+        return inner.appendToFile(rebase(dir), fN, cont);
+    }
+
+    @Override
+    public boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName) {
+        return inner.moveFileWithRename(rebase(dir), fN, rebase(targetDir), newName);
+    }
+
+    @Override
+    public boolean deleteIfExists(Dir dir, String fN) {
+        return inner.deleteIfExists(rebase(dir), fN);
+    }
+
+    @Override
+    public boolean deleteDirIfExists(Dir dir) {
+        return inner.deleteDirIfExists(rebase(dir));
+    }
+}
+
+//}}}
+
+}
@@ -0,0 +1,117 @@
+package tech.sozonov.blog;
+//{{{ Imports
+
+import java.util.Random;
+import static tech.sozonov.blog.Blog.*;
+
+//}}}
+
+class SiteGen {
+    /// Deterministic ingest trees for the benchmarks. The same seed always produces the same
+    /// uploads: docs in dotted topic folders with images, local and global scripts, and later
+    /// waves of edits, deletes and core updates like the ones a real site gets
+    static final String[] topics = { "math", "code", "lang", "music", "travel", "books", "food",
+            "history", "physics", "chess", "games", "notes", "photo", "film", "sport", "work" };
+    static final String[] globalScripts = { "graph", "chart", "katex" };
+    static final int imgBytes = 256;
+
+    private final FileSys fs;
+    private final Random rnd;
+    private final int docs;
+
+    SiteGen(FileSys fs, int docs, long seed) {
+        this.fs = fs;
+        this.docs = docs;
+        this.rnd = new Random(seed);
+    }
+
+    static Subfolder docFolder(int i) {
+        /// "code.lang12.doc345". The leaves are unique, so no doc is a topic of another one
+        return new Subfolder(topics[i % topics.length] + "." + topics[(i / 7) % topics.length]
+                             + (i % 13) + ".doc" + i);
+    }
+
+    void generateSite() {
+        /// The first upload: all the core files, the global scripts and every doc
+        for (String fixed : fixedCoreFiles) {
+            fs.saveOverwriteFile(ingestDir, fixed, "v1 of " + fixed + "\n" + filler(2000));
+        }
+        for (String global : globalScripts) {
+            fs.saveOverwriteFile(ingestDir, global + ".js", "v1 of " + global + "\n" + filler(5000));
+        }
+        for (int i = 0; i < docs; i++) {
+            uploadDoc(i, 1);
+        }
+    }
+
+    int generateUpdates(double editedShare, double deletedShare) {
+        /// A later upload: edits of some docs (new text or new images), deletes of some others,
+        /// and a new version of the style and of one global script. Returns the number of docs
+        int touched = 0;
+        for (int i = 0; i < docs; i++) {
+            double r = rnd.nextDouble();
+            if (r < deletedShare) {
+                fs.saveOverwriteFile(new Dir(ingestDir, docFolder(i)), "i.html", "x");
+                touched++;
+            } else if (r < deletedShare + editedShare) {
+                if (rnd.nextBoolean()) {
+                    uploadDoc(i, 2);
+                } else {
+                    fs.saveOverwriteFile(new Dir(ingestDir, docFolder(i)), "img0.png", filler(imgBytes));
+                }
+                touched++;
+            }
+        }
+        fs.saveOverwriteFile(ingestDir, "style.css", "v2 of style.css\n" + filler(2000));
+        fs.saveOverwriteFile(ingestDir, globalScripts[0] + ".js",
+                             "v2 of " + globalScripts[0] + "\n" + filler(5000));
+        return touched;
+    }
+
+    private void uploadDoc(int i, int revision) {
+        Dir dir = new Dir(ingestDir, docFolder(i));
+        int paragraphs = 5 + rnd.nextInt(40);
+        int images = rnd.nextInt(6);
+        boolean hasLocal = rnd.nextInt(3) == 0;
+        String global = (rnd.nextInt(10) == 0) ? globalScripts[rnd.nextInt(globalScripts.length)] : null;
+        fs.saveOverwriteFile(dir, "i.html", makeDoc(paragraphs, images, hasLocal, global, revision));
+        for (int j = 0; j < images; j++) {
+            fs.saveOverwriteFile(dir, "img" + j + ".png", filler(imgBytes));
+        }
+        if (hasLocal) {
+            fs.saveOverwriteFile(dir, "local.js", "console.log(" + i + ");\n" + filler(500));
+        }
+    }
+
+    private String filler(int length) {
+        var result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            result.append((char)('a' + rnd.nextInt(26)));
+        }
+        return result.toString();
+    }
+
+    static String makeDoc(int paragraphs, int images, boolean hasLocal, String global, int revision) {
+        /// An uploaded `i.html`. The images go into the first paragraphs, one per paragraph
+        var result = new StringBuilder(paragraphs * 120 + 300);
+        result.append("<html>\n<head>\n");
+        if (hasLocal) {
+            result.append("    <script type=\"text/javascript\" src=\"local.js\"></script>\n");
+        }
+        if (global != null) {
+            result.append("    <script type=\"text/javascript\" src=\"../")
+                  .append(global).append(".js\"></script>\n");
+        }
+        result.append("</head>\n<body>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            result.append("    <p>Paragraph ").append(i).append(" of revision ").append(revision)
+                  .append(", long enough to look like prose in a real post.</p>");
+            if (i < images) {
+                result.append("<img src=\"img").append(i).append(".png\">");
+            }
+            result.append('\n');
+        }
+        result.append("</body>\n</html>");
+        return result.toString();
+    }
+}
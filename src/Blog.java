@@ -9,24 +9,76 @@ import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Optional;
+import java.util.HexFormat;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.function.Predicate;
 import java.util.function.Function;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.LinkedHashMap;
 import java.util.stream.Stream;
 import java.lang.reflect.Array;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
 import java.time.format.DateTimeFormatter;
 import java.io.File;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.ClosedWatchServiceException;
+import java.util.concurrent.TimeUnit;
 import java.util.Comparator;
 import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.TreeMap;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 //}}}
 
@@ -39,6 +91,10 @@ static final Dir blogDir = new Dir(webRoot, new Subfolder("blog/blog"));
 static final Dir ingestDir = new Dir(webRoot, new Subfolder("blogIngest"));
 
 static final String appSuburl = "/blog/"; // The URL prefix
+static final String catalogFile = "_catalog.txt"; // in blogDir, see `Catalog`
+static final String catalogPendingFile = "_catalog.pending"; // exists while a run is in progress
+static final String journalFile = "_journal.txt"; // in blogDir, see `Journal`
+static final String navFile = "nav.json"; // versioned like `nav-12.json`, for the external nav
 static final String contentStartMarker = "<div id=\"_content\">\n";
 static final String contentEndMarker = "<!-- _contentEnd -->\n";
 
@@ -47,17 +103,105 @@ static final String[] fixedCoreFiles =
             { "notFound.html", "img404.png", "style.css", "blog.html", "script.js",
               "favicon.ico", "footer.html", "no.png", "yes.png", "termsOfUse.html"};
 
+// The fixed core files that every doc links to in its <head>
+static final String[] headCoreFiles = { "script.js", "style.css" };
+
+// Files with these extensions get a precompressed sibling like `i.html.gz` for `gzip_static`
+static final String[] compressibleExts = { ".html", ".css", ".js", ".json", ".svg", ".txt" };
+static final String gzExt = ".gz";
+
+static final int mapThreshold = 256 * 1024; // `mapFile` maps files this big, and reads smaller ones
+
 static final DateTimeFormatter formatter =
         DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
 
+//}}}
+//{{{ Settings
+
+static class Settings {
+    /// Tunables of a run. The defaults reproduce the original sequential behaviour
+    int renderThreads = 1; // how many docs `createUpdateDocs` renders at once
+    int ioThreads = 1; // how many file operations may be in flight at once. 1 = blocking
+    boolean coreAliases = false; // docs link to `style.latest.css` instead of `style-N.css`
+    boolean externalNav = false; // docs fetch the nav from `nav.latest.json` instead of embedding it
+    boolean prunedNav = false; // docs embed only their branch of the nav, see `NavTree.toPrunedJson`
+    String templateFile = null; // absolute path of the page template, see `Template`
+    int quietMs = 3000; // in daemon mode, how long the ingest dir must be still before a run
+    int port = 10100; // of the built-in server, see `StaticServer`
+    int pageCacheMb = 64; // memory for the hot docs of the built-in server
+    boolean gzip = true; // write a `.gz` sibling next to every compressible file we write
+    String metricsFile = null; // absolute path of the Prometheus textfile written after each run
+    int timeBudgetS = 0; // a run stops writing docs after this long and resumes next time. 0 = none
+    int docsInFlight = 64; // how many docs may be between the stages of the doc pipeline at once
+
+    static Settings fromEnv() {
+        var result = new Settings();
+        result.renderThreads = envPositive("BLOG_RENDER_THREADS", result.renderThreads);
+        result.ioThreads = envPositive("BLOG_IO_THREADS", result.ioThreads);
+        result.coreAliases = envInt("BLOG_CORE_ALIASES", 0) > 0;
+        result.externalNav = envInt("BLOG_EXTERNAL_NAV", 0) > 0;
+        result.prunedNav = envInt("BLOG_PRUNED_NAV", 0) > 0;
+        result.templateFile = System.getenv("BLOG_TEMPLATE");
+        result.quietMs = envInt("BLOG_QUIET_MS", result.quietMs);
+        result.port = envInt("BLOG_PORT", result.port);
+        result.pageCacheMb = envInt("BLOG_PAGE_CACHE_MB", result.pageCacheMb);
+        result.gzip = envInt("BLOG_GZIP", 1) > 0;
+        result.metricsFile = System.getenv("BLOG_METRICS_FILE");
+        result.timeBudgetS = envInt("BLOG_TIME_BUDGET_S", result.timeBudgetS);
+        result.docsInFlight = envPositive("BLOG_DOCS_IN_FLIGHT", result.docsInFlight);
+        return result;
+    }
+
+    static int envPositive(String name, int deflt) {
+        return positiveOr(name, envInt(name, deflt), deflt);
+    }
+
+    static int positiveOr(String name, int val, int deflt) {
+        /// Counts of threads and permits below 1 would leave the pools and the pipeline waiting
+        /// forever, so they fall back to the default
+        if (val >= 1) {
+            return val;
+        }
+        Log.warn(name + "=" + val + " must be at least 1, using " + deflt);
+        return deflt;
+    }
+
+    static int envInt(String name, int deflt) {
+        String val = System.getenv(name);
+        if (val == null || val.isBlank()) {
+            return deflt;
+        }
+        return parseInt(val.trim()).orElse(deflt);
+    }
+}
+
 //}}}
 //{{{ Blog
 
 FileSys fs;
+AsyncFileSys afs; // the same file system, for overlapping many operations
+Settings settings;
+ForkJoinPool renderPool; // null unless rendering is parallel
+Executor renderStage; // the stages of the doc pipeline, null unless it's on
+Executor ioStage;
+Catalog catalog; // loaded on first use and kept up to date by the run
+Set<String> bumpedGlobals = new HashSet(); // extra global scripts updated in this run, like "graph"
+Template template; // the fixed parts of every page, already encoded
+NavTree warmNav; // kept between the runs of a daemon while the set of docs doesn't change
+String warmNavPart;
+Consumer<Subfolder> onDocWritten = subf -> {}; // called after a doc is rewritten or deleted
+Consumer<String> onPhase = phase -> {}; // called as each phase of a run starts, then with "done"
+final Metrics metrics = new Metrics(); // of the runs and of all the file ops, see `phase`
+String currentPhase; // null between runs
+long phaseStartNs;
+PhaseEvent phaseEvent; // of the current phase
 String[] coreVersions; // the new full names of all the fixed core files
 Map<String, String> globalVersions; // the new full names of the extra global scripts
                                     // Entries are like "graph" => "graph-3.js"
 String todayDt = "";
+Journal journal; // of the current run, null outside of runs
+long deadlineNs = Long.MAX_VALUE; // of the time budget of the current run
+volatile boolean paused; // the run ran out of its time budget, so the rest is left to the next one
 
 static final String stampOpen = "<!-- Dates -->";
 static final String stampClose = "<!-- / -->";
@@ -66,28 +210,292 @@ static final String stampShortTemplate = "<div id=\"_dtSt\">Created: $created</d
 // must have the same "div" prefix as stampTemplate
 
 public Blog(FileSys fs)  {
-    this.fs = fs;
+    this(fs, new Settings());
+}
+
+public Blog(FileSys fs, Settings settings)  {
+    this(fs, null, settings);
+}
+
+public Blog(FileSys fs, AsyncFileSys afs, Settings settings)  {
+    /// Without an `afs`, the async ops run on a pool over the same metered `fs`
+    this.fs = new MeteredFileSys(fs, metrics);
+    this.afs = (afs != null) ? afs : new PooledAsyncFileSys(this.fs, settings.ioThreads);
+    this.settings = settings;
+    if (settings.renderThreads > 1) {
+        renderPool = new ForkJoinPool(settings.renderThreads);
+    }
+    if (settings.renderThreads > 1 || settings.ioThreads > 1) {
+        renderStage = (renderPool != null) ? renderPool : stagePool(1, "blog-render");
+        ioStage = stagePool(settings.ioThreads, "blog-docio");
+    }
     coreVersions = new String[fixedCoreFiles.length];
     globalVersions = new HashMap<String, String>();
+    template = (settings.templateFile == null || settings.templateFile.isBlank())
+            ? Template.standard : Template.load(fs, settings.templateFile);
     todayDt = formatter.format(Instant.now());
 }
 
 void run() {
+    long startNs = System.nanoTime();
+    long[] countersBefore = summaryCounters();
+    boolean success = false;
     try {
-        boolean coreIsUpdated = ingestCore();
-        ingestDocs(coreIsUpdated);
+        startRun();
+        phase("catalog");
+        Journal unfinished = openUnfinished();
+        if (unfinished != null) {
+            Log.info("resuming the interrupted run of " + unfinished.todayDt);
+        }
+        catalog();
+        phase("plan");
+        Plan plan = (unfinished != null) ? resumePlan(unfinished) : plan();
+        if (unfinished == null && plan.isEmpty()) {
+            // Like a wakeup of the daemon by the moves and deletes of its own last run
+            Log.debug(() -> "nothing to ingest");
+            if (catalog.scanned) {
+                phase("save");
+                catalog.save(fs);
+                fs.deleteIfExists(blogDir, catalogPendingFile);
+            }
+        } else {
+            applyPlan(plan, unfinished);
+        }
+        phase("done");
+        success = true;
     } catch (Exception e) {
-        e.printStackTrace();
+        Log.error("the run failed in phase " + currentPhase, e);
+        // The in-memory state may be half-updated, so the next run starts from disk and the journal
+        catalog = null;
+        warmNav = null;
+        currentPhase = null;
     }
+    journal = null;
+    metrics.set("blog_run_seconds", "", (System.nanoTime() - startNs) / 1e9);
+    metrics.set("blog_run_success", "", success ? 1 : 0);
+    metrics.count("blog_runs_total", Metrics.label("result",
+            !success ? "failure" : paused ? "paused" : "success"), 1);
+    if (success) {
+        metrics.set("blog_run_last_success_timestamp_seconds", "", Instant.now().getEpochSecond());
+    }
+    writeMetrics();
+    logSummary(success, (System.nanoTime() - startNs) / 1e9, countersBefore);
+    Log.flush();
 }
 
-boolean ingestCore() {
-    /// Ingest the core files. Return true iff there were any updates to the core files
-    if (!fs.dirExists(ingestDir))  {
-        return false;
+
+void applyPlan(Plan plan, Journal unfinished) {
+    journal = (unfinished != null) ? unfinished : Journal.begin(fs, plan, todayDt);
+    // If the journal is lost, the marker still makes the next run rebuild the catalog from disk
+    fs.saveOverwriteFile(blogDir, catalogPendingFile, todayDt);
+    phase("core");
+    applyCore(plan.core);
+    phase("ingestion");
+    ingestDocs(plan.ing);
+    if (paused) {
+        Log.info("out of the time budget, the next run resumes from the journal");
+        catalog = null;
+        warmNav = null;
+    } else {
+        phase("save");
+        catalog.save(fs);
+        journal.end();
+        fs.deleteIfExists(blogDir, catalogPendingFile);
+    }
+}
+
+
+static final String[][] summaryCounters = {
+    { "created", "blog_docs_rebuilt_total", "cause=\"created\"" },
+    { "uploaded", "blog_docs_rebuilt_total", "cause=\"uploaded\"" },
+    { "assets", "blog_docs_rebuilt_total", "cause=\"assets\"" },
+    { "core", "blog_docs_rebuilt_total", "cause=\"core\"" },
+    { "deleted", "blog_docs_deleted_total", "" },
+    { "moved", "blog_assets_moved_total", "" }, // not the temp file renames of the writes
+    { "written_bytes", "blog_fs_written_bytes_total", "" }};
+
+
+long[] summaryCounters() {
+    long[] result = new long[summaryCounters.length];
+    for (int i = 0; i < result.length; i++) {
+        result[i] = metrics.counter(summaryCounters[i][1], summaryCounters[i][2]);
+    }
+    return result;
+}
+
+
+void logSummary(boolean success, double seconds, long[] countersBefore) {
+    /// One line of `key=value` pairs per run, easy to grep and to parse
+    var line = new StringBuilder("run result=")
+            .append(!success ? "failure" : paused ? "paused" : "success")
+            .append(String.format(" seconds=%.3f", seconds));
+    long[] countersAfter = summaryCounters();
+    for (int i = 0; i < summaryCounters.length; i++) {
+        line.append(' ').append(summaryCounters[i][0]).append('=')
+            .append(countersAfter[i] - countersBefore[i]);
+    }
+    line.append(" log_dropped=").append(Log.dropped());
+    Log.info(line.toString());
+}
+
+
+Plan plan() {
+    /// What the run will do. Reads the ingest dir and the catalog, but changes neither
+    CorePlan core = planCore();
+    Set<String> bumped = new HashSet();
+    for (AssetMove m : core.globalBumps) {
+        bumped.add(shaveOffExtension(m.sourceName));
+    }
+    return new Plan(core, planIngestion(core.docsAffected, bumped));
+}
+
+
+Journal openUnfinished() {
+    /// The journal of an interrupted run, if any, with the state set up for resuming it
+    Journal unfinished = Journal.open(fs);
+    if (unfinished != null) {
+        // The catalog on disk is from before the interrupted run, which the plan brings up to date
+        catalog = Catalog.read(fs);
+        globalVersions.putAll(catalog.globalVersions);
+        warmNav = null;
+        todayDt = unfinished.todayDt;
+    }
+    return unfinished;
+}
+
+
+String dryRun() {
+    /// Plans a run and describes it, without changing any file. Like the run, it describes the
+    /// rest of an interrupted run if there's one
+    startRun();
+    Journal unfinished = openUnfinished();
+    catalog();
+    if (unfinished == null) {
+        return describe(plan());
+    }
+    return describe(resumePlan(unfinished)).replaceFirst("plan ", "plan resuming=" + unfinished.todayDt + " ");
+}
+
+
+String describe(Plan plan) {
+    /// One line of `key=value` pairs, like the summary of a run. The written bytes are estimated
+    /// from the sizes of the sources of the docs, before compression, so no doc is read for it.
+    /// What an interrupted run has already done isn't counted
+    Ingestion ing = plan.ing;
+    L<AssetMove> moves = new L();
+    moves.addAll(plan.core.coreBumps);
+    moves.addAll(plan.core.globalBumps);
+    long staleFiles = 0;
+    for (DirPlan dirPlan : ing.dirs) {
+        moves.addAll(dirPlan.moves);
+    }
+    moves = moves.filter(m -> !m.done);
+    L<CreateUpdate> createDocs = ing.createDocs.filter(x -> !ing.done.containsKey(x.targetDir));
+    L<CreateUpdate> updateDocs = ing.updateDocs.filter(x -> !ing.done.containsKey(x.targetDir));
+    long movedBytes = 0;
+    for (AssetMove m : moves) {
+        movedBytes += m.bytes;
+    }
+    long pageBytes = template.htmlStart.remaining() + template.bodyStart.remaining()
+            + template.end.remaining() + ing.navPart.length();
+    long writtenBytes = 0;
+    int[] updated = new int[3]; // uploaded, assets, core
+    for (CreateUpdate cu : createDocs) {
+        writtenBytes += pageBytes + cu.newContentBytes;
+        staleFiles += cu.localFiles.filesToDelete.size();
+    }
+    for (CreateUpdate cu : updateDocs) {
+        staleFiles += cu.localFiles.filesToDelete.size();
+        if (cu.hasNewContent) {
+            updated[0]++;
+            writtenBytes += pageBytes + cu.newContentBytes;
+        } else {
+            updated[(cu.sourceDir == null) ? 2 : 1]++;
+            writtenBytes += fs.listFiles(new Dir(blogDir, cu.targetDir))
+                              .first(x -> x.name.equals("i.html"))
+                              .map(x -> Math.max(x.size, 0)).orElse(0L);
+        }
+    }
+    int writtenFiles = createDocs.size() + updateDocs.size();
+    return "plan core_bumps=" + plan.core.coreBumps.filter(m -> !m.done).size()
+        + " global_bumps=" + plan.core.globalBumps.filter(m -> !m.done).size()
+        + " created=" + createDocs.size()
+        + " uploaded=" + updated[0] + " assets=" + updated[1] + " core=" + updated[2]
+        + " deleted=" + ing.deleteDocs.filter(x -> !ing.done.containsKey(x)).size()
+        + " discarded=" + ing.discardDirs.size()
+        + " moved_files=" + moves.size() + " moved_bytes=" + movedBytes
+        + " written_files=" + writtenFiles + " written_bytes_est=" + writtenBytes
+        + " stale_files=" + staleFiles;
+}
+
+
+void phase(String name) {
+    /// Ends the current phase of the run, if any, and starts the next one. "done" ends the run
+    long now = System.nanoTime();
+    if (currentPhase != null) {
+        metrics.set("blog_phase_seconds", Metrics.label("phase", currentPhase),
+                    (now - phaseStartNs) / 1e9);
+        phaseEvent.commit();
+    }
+    currentPhase = name.equals("done") ? null : name;
+    phaseStartNs = now;
+    if (currentPhase != null) {
+        phaseEvent = new PhaseEvent();
+        phaseEvent.phase = currentPhase;
+        phaseEvent.begin();
+    }
+    onPhase.accept(name);
+}
+
+
+void writeMetrics() {
+    /// For the textfile collector of the node exporter, which must never see a half-written file
+    if (settings.metricsFile == null || settings.metricsFile.isBlank()) {
+        return;
+    }
+    Path path = Paths.get(settings.metricsFile);
+    try {
+        saveAtomically(Dir.ofString(path.getParent().toString()), path.getFileName().toString(),
+                       metrics.toPrometheus());
+    } catch (RuntimeException e) {
+        Log.warn("can't write the metrics to " + settings.metricsFile + ": " + e.getMessage());
+    }
+}
+
+
+void startRun() {
+    /// Resets the per-run state, for when the same Blog does many runs in a daemon
+    todayDt = formatter.format(Instant.now());
+    coreVersions = new String[fixedCoreFiles.length];
+    bumpedGlobals.clear();
+    paused = false;
+    deadlineNs = (settings.timeBudgetS > 0)
+            ? System.nanoTime() + settings.timeBudgetS * 1_000_000_000L : Long.MAX_VALUE;
+}
+
+
+boolean outOfTime() {
+    /// Checked before each doc. Once the budget is spent, the rest of the docs are left alone
+    if (deadlineNs != Long.MAX_VALUE && System.nanoTime() > deadlineNs) {
+        paused = true;
+    }
+    return paused;
+}
+
+
+Catalog catalog() {
+    if (catalog == null) {
+        catalog = Catalog.load(fs);
+        globalVersions.putAll(catalog.globalVersions);
     }
-    var inFiles = fs.listFiles(ingestDir);
-    var existingFiles = fs.listFiles(blogDir);
+    return catalog;
+}
+
+
+CorePlan planCore() {
+    /// Decides which core files and global scripts get new versions, reading but not moving them
+    var result = new CorePlan();
+    var inFiles = fs.dirExists(ingestDir) ? fs.listFiles(ingestDir) : new L<FileInfo>();
     for (FileInfo fi : inFiles) {
         String fn = fi.name;
         int indFixed = -1;
@@ -98,172 +506,614 @@ boolean ingestCore() {
         }
 
         if (indFixed > -1) {
-            String newVersionOfFixed = makeNameBumpedVersion(new UnvName(fn), existingFiles);
-            fs.moveFileWithRename(ingestDir, fn, blogDir, newVersionOfFixed);
-            coreVersions[indFixed] = newVersionOfFixed;
+            String current = catalog().coreVersions.get(fn);
+            byte[] bytes = fs.readBinaryFile(ingestDir, fn);
+            String hash = contentHash(bytes);
+            if (current != null && hash.equals(catalog.hashOf(fs, null, current))) {
+                Log.debug(() -> "unchanged core file " + fn);
+                result.unchanged.add(fn);
+                continue;
+            }
+            String newVersionOfFixed = makeNameBumpedVersion(new UnvName(fn),
+                    catalog.currentVersion(catalog.coreVersions, fn));
+            result.coreBumps.add(new AssetMove(fn, newVersionOfFixed, hash, bytes.length));
+            result.coreVersions[indFixed] = newVersionOfFixed;
+            // Docs don't link to the other fixed core files, and with aliases not even to these
+            result.docsAffected |= indexOf(headCoreFiles, fn) > -1 && !settings.coreAliases;
         } else if (fn.endsWith(".js")) {
-            String newVersionOfExtra = makeNameBumpedVersion(new UnvName(fn), existingFiles);
-            fs.moveFileWithRename(ingestDir, fn, blogDir, newVersionOfExtra);
-            globalVersions.put(shaveOffExtension(fn), newVersionOfExtra);
+            String shortName = shaveOffExtension(fn);
+            String current = catalog().globalVersions.get(shortName);
+            byte[] bytes = fs.readBinaryFile(ingestDir, fn);
+            String hash = contentHash(bytes);
+            if (current != null && hash.equals(catalog.hashOf(fs, null, current))) {
+                Log.debug(() -> "unchanged global script " + fn);
+                result.unchanged.add(fn);
+                continue;
+            }
+            String newVersionOfExtra = makeNameBumpedVersion(new UnvName(fn),
+                    catalog.currentVersion(catalog.globalVersions, shortName));
+            result.globalBumps.add(new AssetMove(fn, newVersionOfExtra, hash, bytes.length));
         }
     }
     for (int i = 0; i < fixedCoreFiles.length; i++) {
-        if (coreVersions[i] == null) {
-            L<String> existingNames =
-                    getNamesWithPrefix(new UnvName(fixedCoreFiles[i]), existingFiles);
-            if (existingNames.size() == 0)  {
+        if (result.coreVersions[i] == null) {
+            String existingName = catalog().coreVersions.get(fixedCoreFiles[i]);
+            if (existingName == null)  {
                 throw new RuntimeException(
                     "Error, no core fixed file found for " + fixedCoreFiles[i]);
             }
-            coreVersions[i] = getNameWithMaxVersion(existingNames).f1;
+            result.coreVersions[i] = existingName;
+        }
+    }
+    // Switching any of these modes changes the <head> of every doc
+    result.docsAffected |= planFlag("coreAliases", settings.coreAliases, result);
+    result.docsAffected |= planFlag("externalNav", settings.externalNav, result);
+    result.docsAffected |= planFlag("prunedNav", settings.prunedNav, result);
+    planFlag("gzip", settings.gzip, result); // only the `.gz` siblings change, see `syncGzSiblings`
+    return result;
+}
+
+
+boolean planFlag(String name, boolean value, CorePlan core) {
+    /// Returns true iff a setting differs from the previous run, recording it to be saved
+    String flag = String.valueOf(value);
+    if (flag.equals(catalog().flags.getOrDefault(name, "false"))) {
+        return false;
+    }
+    core.flags.put(name, flag);
+    return true;
+}
+
+
+void applyCore(CorePlan core) {
+    /// Moves the planned core files and global scripts in, and drops the unchanged ones
+    for (String fn : core.unchanged) {
+        fs.deleteIfExists(ingestDir, fn);
+    }
+    for (AssetMove m : core.coreBumps) {
+        moveCoreFile(m);
+    }
+    for (int i = 0; i < fixedCoreFiles.length; i++) {
+        catalog.coreVersions.put(fixedCoreFiles[i], core.coreVersions[i]);
+    }
+    for (AssetMove m : core.globalBumps) {
+        moveCoreFile(m);
+        String shortName = shaveOffExtension(m.sourceName);
+        globalVersions.put(shortName, m.newName);
+        catalog.globalVersions.put(shortName, m.newName);
+        bumpedGlobals.add(shortName); // only the docs using it need rebuilding
+    }
+    coreVersions = core.coreVersions.clone();
+    if (settings.coreAliases) {
+        updateCoreAliases();
+    }
+    if (core.flags.containsKey("gzip")) {
+        syncGzSiblings();
+    }
+    catalog.flags.putAll(core.flags);
+}
+
+
+void moveCoreFile(AssetMove m) {
+    if (!m.done) {
+        fs.moveFileWithRename(ingestDir, m.sourceName, blogDir, m.newName);
+        metrics.count("blog_assets_moved_total", "", 1);
+        if (settings.gzip && isCompressible(m.newName)) { // not to read it back for nothing
+            saveGzSibling(blogDir, m.newName, ByteBuffer.wrap(fs.readBinaryFile(blogDir, m.newName)));
+        }
+    }
+    catalog.hashes.put(m.newName, m.hash);
+}
+
+
+void updateCoreAliases() {
+    /// Points the stable aliases like `style.latest.css` at the current versions of the
+    /// <head> core files. The hashes in the catalog tell if an alias is already up to date
+    for (String fixed : headCoreFiles) {
+        String current = coreVersions[indexOf(fixedCoreFiles, fixed)];
+        String alias = coreAliasName(fixed);
+        String currentHash = catalog.hashOf(fs, null, current);
+        if (!currentHash.equals(catalog.hashes.get(alias))) {
+            Log.info("pointing " + alias + " to " + current);
+            saveAtomically(blogDir, alias, fs.readTextFile(blogDir, current));
+            catalog.hashes.put(alias, currentHash);
+        }
+    }
+}
+
+
+String coreLink(String fixed) {
+    /// The URL by which docs link to a <head> core file
+    return appSuburl + (settings.coreAliases
+            ? coreAliasName(fixed)
+            : coreVersions[indexOf(fixedCoreFiles, fixed)]);
+}
+
+
+void saveAtomically(Dir dir, String fn, String cont) {
+    /// Writes to a temp file first and renames it, so readers never see a half-written file
+    fs.saveOverwriteFile(dir, fn + ".tmp", cont);
+    fs.moveFileWithRename(dir, fn + ".tmp", dir, fn);
+    saveGzSibling(dir, fn, ByteBuffer.wrap(cont.getBytes(StandardCharsets.UTF_8)));
+}
+
+
+void saveGzSibling(Dir dir, String fn, ByteBuffer... parts) {
+    /// Writes the precompressed `fn.gz` next to a file that has just been written. The gathering
+    /// write is atomic by itself, see `writeGathering`
+    if (settings.gzip && isCompressible(fn)) {
+        fs.saveOverwriteFile(dir, fn + gzExt, new ByteBuffer[] { gzip(parts) });
+    }
+}
+
+
+void syncGzSiblings() {
+    /// After gzip is switched on, writes the `.gz` siblings that are missing, i.e. those of the
+    /// files written while it was off, as the docs skipped by the run would never get them.
+    /// After it's switched off, deletes them all, since they'd go stale as their files change
+    L<Dir> dirs = fs.listSubfoldersContaining(blogDir, "i.html").trans(x -> new Dir(blogDir, x));
+    dirs.add(blogDir);
+    for (Dir dir : dirs) {
+        L<FileInfo> files = fs.listFiles(dir);
+        Set<String> names = files.trans(x -> x.name).toSet();
+        for (FileInfo f : files) {
+            if (settings.gzip && isCompressible(f.name) && !isInternalFile(f.name)
+                    && !names.contains(f.name + gzExt)) {
+                saveGzSibling(dir, f.name, ByteBuffer.wrap(fs.readBinaryFile(dir, f.name)));
+            } else if (!settings.gzip && isGzSibling(f.name)) {
+                fs.deleteIfExists(dir, f.name);
+            }
+        }
+    }
+}
+
+
+static ByteBuffer gzip(ByteBuffer... parts) {
+    /// Compresses at the max level. It's done once per file, and saves CPU on every request.
+    /// Reads duplicates of the parts, so they can still be written afterwards
+    var bytes = new ByteArrayOutputStream();
+    try (var out = new GZIPOutputStream(bytes) { { def.setLevel(Deflater.BEST_COMPRESSION); } }) {
+        var channel = Channels.newChannel(out);
+        for (ByteBuffer part : parts) {
+            ByteBuffer p = part.duplicate();
+            while (p.hasRemaining()) {
+                channel.write(p);
+            }
+        }
+    } catch (IOException e) {
+        throw new RuntimeException(e);
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+}
+
+
+static boolean isCompressible(String fn) {
+    for (String ext : compressibleExts) {
+        if (fn.endsWith(ext)) {
+            return true;
         }
     }
-    return inFiles.size() > 0;
+    return false;
+}
+
+
+static boolean isGzSibling(String fn) {
+    /// "local-2.js.gz" -> true. These are never assets of their own
+    return fn.endsWith(gzExt) && isCompressible(fn.substring(0, fn.length() - gzExt.length()));
+}
+
+
+static boolean isInternalFile(String fn) {
+    /// The bookkeeping of the runs and the temp files of their atomic writes, never published
+    return fn.equals(catalogFile) || fn.equals(catalogPendingFile) || fn.equals(journalFile)
+            || fn.endsWith(".tmp");
 }
 
-void ingestDocs(boolean coreIsUpdated) {
-    Ingestion ing = buildIngestion(coreIsUpdated);
+void ingestDocs(Ingestion ing) {
+    applyIngestion(ing);
+    phase("create");
     createUpdateDocs(ing, false); // create docs
+    if (settings.externalNav || settings.prunedNav) {
+        // After the creates so that the nav never links to a missing doc
+        phase("nav");
+        publishNav(ing);
+    }
+    phase("update");
     createUpdateDocs(ing, true); // update docs
+    phase("delete");
     deleteDocs(ing);
 }
 
 
-Ingestion buildIngestion(boolean coreIsUpdated) {
-    /// Moves the local files and builds the full document lists
+void publishNav(Ingestion ing) {
+    /// Writes the nav tree to a new `nav-N.json` and points `nav.latest.json` at it. Docs only
+    /// link to the pointer, so adding or deleting a doc rewrites these two small files and no doc.
+    /// The previous version is kept for visitors who have already fetched the old pointer.
+    /// It's also published when all the docs are rebuilt, which is how a switch to one of the
+    /// modes that use it shows up, because the set of docs may have changed while it was off
+    String current = catalog().navFile;
+    if (current != null && ing.createDocs.isEmpty() && ing.deleteDocs.isEmpty()
+            && !ing.coreUpdated) {
+        return;
+    }
+    String newVersion = makeNameBumpedVersion(new UnvName(navFile),
+            (current == null) ? new L() : L.of(new FileInfo(current)));
+    saveAtomically(blogDir, newVersion, "[" + ing.navPart + "]");
+    saveAtomically(blogDir, coreAliasName(navFile),
+            "{\"src\": \"" + appSuburl + newVersion + "\"}");
+    int staleVersion = getFileVersion(newVersion) - 2;
+    if (staleVersion >= 1) {
+        String stale = (staleVersion == 1) ? navFile : new UnvName(navFile).toVersion(staleVersion);
+        fs.deleteIfExists(blogDir, stale);
+        fs.deleteIfExists(blogDir, stale + gzExt);
+    }
+    catalog.navFile = newVersion;
+}
+
+
+Ingestion planIngestion(boolean coreIsUpdated, Set<String> bumped) {
+    /// Builds the full document lists and the moves of the local files, without changing a file
+    /// or the catalog. `bumped` are the global scripts the run updates
     Ingestion ing = new Ingestion();
-    ing.allSubfs = fs.listSubfoldersContaining(blogDir, "i.html").toSet();
+    ing.allSubfs = new HashSet(catalog().docs.keySet());
+    ing.coreUpdated = coreIsUpdated;
 
     L<Subfolder> ingestDirs = fs.listSubfolders(ingestDir);
     L<Subfolder> targetDirs = ingestDirs.trans(x -> convertToTargetDir(x));
+    // Listing and reading all the incoming dirs at once hides the latency of each call
+    L<CompletableFuture<L<FileInfo>>> listings =
+            ingestDirs.trans(x -> afs.listFiles(new Dir(ingestDir, x)));
+    // The docs themselves are read only when they're rendered, so the plan holds no content
+    L<CompletableFuture<Long>> htmlSizes = new L(ingestDirs.size());
     for (int i = 0; i < ingestDirs.size(); i++) {
+        Dir inSourceDir = new Dir(ingestDir, ingestDirs.get(i));
+        htmlSizes.add(listings.get(i).thenCompose(inFiles -> {
+            Optional<FileInfo> html = inFiles.first(x -> x.name.equals("i.html"));
+            if (html.isEmpty() || html.get().size > -1) {
+                return CompletableFuture.completedFuture(html.map(x -> x.size).orElse(-1L));
+            }
+            return afs.readTextFile(inSourceDir, "i.html").thenApply(x -> (long)x.length());
+        }));
+    }
+
+    L<CompletableFuture<DirPlan>> dirPlans = new L(ingestDirs.size());
+    for (int i = 0; i < ingestDirs.size(); i++) {
+        long htmlSize = await(htmlSizes.get(i));
+        if (htmlSize > -1 && htmlSize <= 1) {
+            // a 0- or 1-byte long i.html means "delete this document"
+            ing.deleteDocs.add(targetDirs.get(i));
+            dirPlans.add(null);
+            continue;
+        }
+        dirPlans.add(planDirAsync(await(listings.get(i)), ingestDirs.get(i), targetDirs.get(i)));
+    }
+
+    for (int i = 0; i < ingestDirs.size(); i++) {
+        if (dirPlans.get(i) == null) {
+            continue;
+        }
         Subfolder inSourceSubf = ingestDirs.get(i);
-        Dir inSourceDir = new Dir(ingestDir, inSourceSubf);
         Subfolder inTargetSubf = targetDirs.get(i);
-        Dir inTargetDir = new Dir(blogDir, inTargetSubf);
+        long htmlSize = await(htmlSizes.get(i));
+        DirPlan dirPlan = await(dirPlans.get(i));
+        ing.dirs.add(dirPlan);
+        LocalFiles localFiles = dirPlan.localFiles;
+
+        CreateUpdate cu = null;
+        if (htmlSize < 0 && !localFiles.changed) {
+            // Only re-uploads of the current versions, so the doc stays as it is
+            ing.discardDirs.add(inSourceSubf);
+        } else if (ing.allSubfs.contains(inTargetSubf)) {
+            cu = (htmlSize > -1)
+                    ? CreateUpdate.uploaded(inSourceSubf, inTargetSubf, localFiles, htmlSize)
+                    : new CreateUpdate(inSourceSubf, inTargetSubf, localFiles, true);
+            ing.updateDocs.add(cu);
+        } else if (htmlSize > -1) {
+            cu = CreateUpdate.uploaded(inSourceSubf, inTargetSubf, localFiles, htmlSize);
+            ing.createDocs.add(cu);
+            ing.allSubfs.add(inTargetSubf);
+        }
+        if (cu != null) {
+            cu.dirPlan = dirPlan;
+        }
+    }
+    for (Subfolder toDel : ing.deleteDocs) {
+        ing.allSubfs.remove(toDel);
+    }
+    // Docs that weren't uploaded but link to an updated core file
+    Set<Subfolder> uploaded = targetDirs.toSet();
+    Set<Subfolder> coreAffected = coreIsUpdated
+            ? ing.allSubfs : catalog.dependentsOf(bumped);
+    for (Subfolder old : coreAffected)  {
+        if (!uploaded.contains(old) && ing.allSubfs.contains(old)) {
+            Log.debug(() -> "adding an update because of core: " + old.cont);
+            ing.updateDocs.add(new CreateUpdate(null, old, catalog.localFilesOf(old), false));
+        }
+    }
+    if (warmNav != null && ing.createDocs.isEmpty() && ing.deleteDocs.isEmpty()) {
+        ing.nav = warmNav;
+        ing.navPart = warmNavPart;
+    } else {
+        ing.finalize();
+    }
+    return ing;
+}
 
-        String newContent = "";
-        var inFiles = fs.listFiles(inSourceDir);
-        int mbHtmlInd = inFiles.findIndex(x -> x.name.equals("i.html"));
-        if (mbHtmlInd > -1) {
-            newContent = fs.readTextFile(inSourceDir, "i.html");
 
-            if (newContent.length() <= 1) {
-                // a 0- or 1-byte long i.html means "delete this document"
-                ing.deleteDocs.add(inTargetSubf);
-                continue;
-            }
+void applyIngestion(Ingestion ing) {
+    /// Brings the catalog up to date with the plan. The local files of a doc are moved in just
+    /// before it's rendered, and only those of the dirs without a doc to write are moved here
+    Set<DirPlan> withDoc = Collections.newSetFromMap(new IdentityHashMap());
+    for (CreateUpdate cu : ing.createDocs) {
+        withDoc.add(cu.dirPlan);
+    }
+    for (CreateUpdate cu : ing.updateDocs) {
+        withDoc.add(cu.dirPlan);
+    }
+    L<CompletableFuture<Void>> moves = ing.dirs.filter(x -> !withDoc.contains(x))
+                                              .trans(this::applyMovesAsync);
+    await(CompletableFuture.allOf(moves.toArray(new CompletableFuture[0])));
+    for (DirPlan dirPlan : ing.dirs) {
+        catalog.assets.put(dirPlan.targetDir, dirPlan.localFiles.versions);
+        for (String old : dirPlan.localFiles.filesToDelete) {
+            catalog.hashes.remove(assetKey(dirPlan.targetDir, old));
         }
-        LocalFiles localFiles = moveAndReadLocalFiles(inFiles, inSourceDir, inTargetDir);
-        
-        if (ing.allSubfs.contains(inTargetSubf)) {
-            if (mbHtmlInd > -1) {
-                newContent = fs.readTextFile(inSourceDir, "i.html");
-                ing.updateDocs.add(
-                    new CreateUpdate(inSourceSubf, inTargetSubf, localFiles, newContent));
-            } else {
-                ing.updateDocs.add(
-                    new CreateUpdate(inSourceSubf, inTargetSubf, localFiles, true));
-            }
-        } else if (mbHtmlInd > -1) {
-            ing.createDocs.add(
-                new CreateUpdate(inSourceSubf, inTargetSubf, localFiles, newContent));
-            ing.allSubfs.add(inTargetSubf);
+    }
+    for (CreateUpdate cu : ing.createDocs) {
+        catalog.docs.put(cu.targetDir, new Catalog.DocDates(todayDt, todayDt));
+    }
+    for (CreateUpdate cu : ing.updateDocs) {
+        if (cu.sourceDir != null) {
+            catalog.docs.get(cu.targetDir).updated = todayDt;
         }
     }
-    if (coreIsUpdated) {
-        for (Subfolder old : ing.allSubfs)  {
-            if (!targetDirs.contains(old)) {
-                print("adding an update because of core: " + old.cont); 
-                ing.updateDocs.add(new CreateUpdate(null, old, new LocalFiles(), false));
+    for (Subfolder toDel : ing.deleteDocs) {
+        catalog.docs.remove(toDel);
+        catalog.assets.remove(toDel);
+        catalog.renderKeys.remove(toDel);
+        catalog.setUses(toDel, new L());
+    }
+    for (var e : ing.done.entrySet()) {
+        catalog.setUses(e.getKey(), e.getValue());
+    }
+    warmNav = ing.nav;
+    warmNavPart = ing.navPart;
+}
+
+
+Plan resumePlan(Journal unfinished) {
+    /// The plan of an interrupted run, from its journal. The moves whose source is gone are
+    /// marked done, and so are the docs the journal says were written or deleted. They stay in
+    /// the plan so that applying it still brings the catalog (read from before that run) up to date
+    var core = new CorePlan();
+    Set<String> ingestFiles = fs.listFiles(ingestDir).trans(x -> x.name).toSet();
+    Ingestion ing = new Ingestion();
+    ing.allSubfs = new HashSet(catalog().docs.keySet());
+    ing.done.putAll(unfinished.done);
+    DirPlan dirPlan = null;
+    Set<String> sourceFiles = Set.of();
+    for (String line : unfinished.plan) {
+        String[] spl = line.split("\t", -1);
+        switch (spl[0]) {
+            case "core", "global" -> {
+                var m = new AssetMove(spl[1], spl[2], spl[3], Long.parseLong(spl[4]));
+                m.done = !ingestFiles.contains(m.sourceName);
+                if (spl[0].equals("core")) {
+                    core.coreBumps.add(m);
+                    core.coreVersions[indexOf(fixedCoreFiles, m.sourceName)] = m.newName;
+                } else {
+                    core.globalBumps.add(m);
+                }
+            }
+            case "unchanged" -> core.unchanged.add(spl[1]);
+            case "flag" -> core.flags.put(spl[1], spl[2]);
+            case "dir" -> {
+                finishResumedDir(dirPlan);
+                dirPlan = new DirPlan(new Subfolder(spl[1]), new Subfolder(spl[2]));
+                ing.dirs.add(dirPlan);
+                sourceFiles = fs.listFiles(new Dir(ingestDir, dirPlan.sourceDir))
+                                .trans(x -> x.name).toSet();
+            }
+            case "move" -> {
+                var m = new AssetMove(spl[1], spl[2], spl[3], Long.parseLong(spl[4]));
+                m.done = !sourceFiles.contains(m.sourceName);
+                dirPlan.moves.add(m);
+            }
+            case "create", "update" -> {
+                finishResumedDir(dirPlan);
+                dirPlan = null;
+                Subfolder source = spl[1].isEmpty() ? null : new Subfolder(spl[1]);
+                Subfolder target = new Subfolder(spl[2]);
+                LocalFiles localFiles = (source == null)
+                        ? catalog.localFilesOf(target) : ing.dirs.last().localFiles;
+                if (spl[3].equals("content") && !sourceFiles.contains("i.html")
+                        && !ing.done.containsKey(target)) {
+                    Log.warn("the upload of " + target.cont + " is gone, leaving it out");
+                    continue;
+                }
+                var cu = (spl[3].equals("content"))
+                        ? CreateUpdate.uploaded(source, target, localFiles, 0)
+                        : new CreateUpdate(source, target, localFiles, source != null);
+                cu.dirPlan = (source == null) ? null : ing.dirs.last();
+                if (spl[0].equals("create")) {
+                    ing.createDocs.add(cu);
+                    ing.allSubfs.add(target);
+                } else {
+                    ing.updateDocs.add(cu);
+                }
+            }
+            case "delete" -> {
+                ing.deleteDocs.add(new Subfolder(spl[1]));
+                ing.allSubfs.remove(new Subfolder(spl[1]));
             }
+            case "discard" -> ing.discardDirs.add(new Subfolder(spl[1]));
+            default -> {}
+        }
+    }
+    finishResumedDir(dirPlan);
+    for (int i = 0; i < fixedCoreFiles.length; i++) {
+        if (core.coreVersions[i] == null) {
+            core.coreVersions[i] = catalog.coreVersions.get(fixedCoreFiles[i]);
         }
     }
     ing.finalize();
-    return ing;
+    return new Plan(core, ing);
 }
 
 
-LocalFiles moveAndReadLocalFiles(L<FileInfo> inFiles, Dir inSourceDir, Dir inTargetDir) {
-    /// Moves all local files (except of course the `i.html`) to target dir and determines
-    /// their new filenames
-    LocalFiles result = new LocalFiles();
-    Map<UnvName, Integer> maxVersions = new HashMap();
-
-    var existingFiles = fs.listFiles(inTargetDir);
-    for (var fInfo : inFiles) {
-        if (fInfo.name.equals("i.html")) {
-            continue;
+void finishResumedDir(DirPlan dirPlan) {
+    /// The local files of a dir as they will be: what's there now, and the moves still to do
+    if (dirPlan == null || dirPlan.localFiles != null) {
+        return;
+    }
+    VersionIndex index = localFilesIndex(fs.listFiles(new Dir(blogDir, dirPlan.targetDir)));
+    for (AssetMove m : dirPlan.moves) {
+        if (!m.done) {
+            index.add(m.newName);
         }
-        print("inFile: " + fInfo.name);
-        UnvName fn = new UnvName(fInfo.name);
-        String newVersion = makeNameBumpedVersion(fn, existingFiles);
-        print("new version " + newVersion + " to be moved to " + inTargetDir.cont);
-        fs.moveFileWithRename(inSourceDir, fInfo.name, inTargetDir, newVersion);
-    }
-    existingFiles = fs.listFiles(inTargetDir).filter(x -> !x.name.equals("i.html"));
-    for (var f : existingFiles) {
-        UnvName unvName = new UnvName(f.name);
-        int version = getFileVersion(f.name);
-        if (maxVersions.containsKey(unvName))  {
-            if (version > maxVersions.get(unvName)) {
-                print("new max version " + version + " instead of " + maxVersions.get(unvName)); 
-                result.filesToDelete.add(result.versions.get(unvName));
-                result.versions.put(unvName, f.name); 
-                maxVersions.put(unvName, version);
-            } else {
-                result.filesToDelete.add(f.name);
-                print("planning to delete " + f.name); 
+    }
+    dirPlan.localFiles = index.toLocalFiles();
+    dirPlan.localFiles.changed = dirPlan.moves.nonEmpty();
+}
+
+
+LocalFiles moveAndReadLocalFiles(L<FileInfo> inFiles, Dir inSourceDir, Dir inTargetDir) {
+    DirPlan dirPlan = await(planDirAsync(inFiles, subfolderOf(inSourceDir, ingestDir),
+                                         subfolderOf(inTargetDir)));
+    await(applyMovesAsync(dirPlan));
+    return dirPlan.localFiles;
+}
+
+
+CompletableFuture<DirPlan> planDirAsync(L<FileInfo> inFiles, Subfolder sourceSubf,
+                                        Subfolder targetSubf) {
+    /// Decides the new filenames of all local files (except of course the `i.html`) of an ingest
+    /// dir. All the reads of a dir are in flight at the same time.
+    /// A file identical to the current version of it is left where it is, keeping the old name
+    Dir inSourceDir = new Dir(ingestDir, sourceSubf);
+    Dir inTargetDir = new Dir(blogDir, targetSubf);
+    Catalog cat = catalog();
+    L<FileInfo> localIn = inFiles.filter(x -> !x.name.equals("i.html"));
+    return afs.listFiles(inTargetDir).thenCompose(existingFiles -> {
+        VersionIndex index = localFilesIndex(existingFiles);
+        // Taken before any bump, so that each file is compared with what's on disk
+        L<String> currents = localIn.trans(x -> index.current(new UnvName(x.name)));
+        L<CompletableFuture<AssetMove>> hashed = localIn.trans(fInfo ->
+                afs.readBinaryFile(inSourceDir, fInfo.name).thenApply(bytes ->
+                        new AssetMove(fInfo.name, null, contentHash(bytes), bytes.length)));
+        return CompletableFuture.allOf(hashed.toArray(new CompletableFuture[0])).thenApply(x -> {
+            var result = new DirPlan(sourceSubf, targetSubf);
+            for (int i = 0; i < hashed.size(); i++) {
+                AssetMove m = hashed.get(i).join();
+                String current = currents.get(i);
+                if (current != null && m.hash.equals(cat.hashOf(fs, targetSubf, current))) {
+                    Log.debug(() -> "unchanged " + m.sourceName + ", keeping " + current);
+                    continue;
+                }
+                m.newName = index.bump(new UnvName(m.sourceName));
+                result.moves.add(m);
             }
-        } else {
-            maxVersions.put(unvName, version);
-            result.versions.put(unvName, f.name); 
-            print("new version " + version + "  for " + unvName.cont); 
+            result.localFiles = index.toLocalFiles();
+            result.localFiles.changed = result.moves.nonEmpty();
+            return result;
+        });
+    });
+}
+
+
+CompletableFuture<Void> applyMovesAsync(DirPlan dirPlan) {
+    /// All the moves of a dir are in flight at the same time, and the siblings of their files
+    /// are compressed in parallel
+    Dir inSourceDir = new Dir(ingestDir, dirPlan.sourceDir);
+    Dir inTargetDir = new Dir(blogDir, dirPlan.targetDir);
+    L<CompletableFuture<Boolean>> moved = dirPlan.moves.trans(m -> {
+        catalog.hashes.put(assetKey(dirPlan.targetDir, m.newName), m.hash);
+        if (m.done) {
+            return CompletableFuture.completedFuture(true);
         }
-    }
-    return result;
+        Log.debug(() -> "moving " + m.sourceName + " to " + inTargetDir.cont + "/" + m.newName);
+        return afs.moveFileWithRename(inSourceDir, m.sourceName, inTargetDir, m.newName)
+                  .thenApply(ok -> {
+                      metrics.count("blog_assets_moved_total", "", 1);
+                      if (settings.gzip && isCompressible(m.newName)) {
+                          saveGzSibling(inTargetDir, m.newName,
+                                        ByteBuffer.wrap(fs.readBinaryFile(inTargetDir, m.newName)));
+                      }
+                      return ok;
+                  });
+    });
+    return CompletableFuture.allOf(moved.toArray(new CompletableFuture[0]));
+}
+
+
+static LocalFiles readLocalFiles(L<FileInfo> targetFiles) {
+    /// Determines the max versions of local files in a target dir, and the older ones to delete
+    return localFilesIndex(targetFiles).toLocalFiles();
+}
+
+
+static VersionIndex localFilesIndex(L<FileInfo> targetFiles) {
+    /// The doc itself, the `.gz` siblings and the temp files of an interrupted write are not
+    /// local files
+    return VersionIndex.of(targetFiles.filter(x -> !x.name.equals("i.html") && !isGzSibling(x.name)
+                                                   && !x.name.endsWith(".tmp")));
+}
+
+
+ByteBuffer[] buildDocument(CreateUpdate createUpdate, String old, String updatedDt,
+                           Ingestion ing) {
+    return buildDocument(createUpdate, old, createUpdate.newContent, updatedDt, ing);
 }
 
 
-String buildDocument(CreateUpdate createUpdate, String old, String updatedDt, Ingestion ing) {
-    if (old == "" && createUpdate.newContent == "") {
+ByteBuffer[] buildDocument(CreateUpdate createUpdate, CharSequence old, CharSequence newContent,
+                           String updatedDt, Ingestion ing) {
+    /// Renders a doc as UTF-8 segments ready for a gathering write. The fixed parts are shared
+    /// pre-encoded template segments, only the variable parts get encoded. When the sources are
+    /// `HtmlBytes`, the content segments are slices of them, so nothing of it is decoded or copied
+    if (old.length() == 0 && newContent.length() == 0) {
         throw new RuntimeException("Can't build a document with no inputs!");
     }
-    String mainSource;
+    CharSequence mainSource;
     boolean isOld = false;
-    if (createUpdate.newContent != "") {
-        mainSource = createUpdate.newContent;
+    if (newContent.length() > 0) {
+        mainSource = newContent;
     } else {
         mainSource = old;
         isOld = true;
     }
     L<String> globalScripts = new L();
 
-    String content = extractContent(mainSource, isOld);
-    String dateStamp = buildDateStamp(old, createUpdate.bumpTheDate, updatedDt);
-    print("built the datestamp: " + dateStamp); 
+    // One pass over each source finds everything the rest of the render needs
+    HtmlScan scan = HtmlScan.of(mainSource);
+    HtmlScan oldScan = isOld ? scan : HtmlScan.of(old);
+    String dateStamp = buildDateStamp(old, oldScan, createUpdate.bumpTheDate, updatedDt);
     String localScriptName =
-            parseHead(mainSource, new Dir(blogDir, createUpdate.targetDir), isOld, globalScripts);
-    L<Substitution> subs = parseBodySubstitutions(content, dateStamp, createUpdate.localFiles);
-
-    var result = new StringBuilder();
-    buildHead(localScriptName, globalScripts, createUpdate.targetDir, ing, result);
-    buildBody(content, subs, result);
-    return result.toString();
+            parseHead(scan, createUpdate.localFiles, isOld, globalScripts);
+    catalog().setUses(createUpdate.targetDir, globalScripts);
+    L<Substitution> subs = parseBodySubstitutions(scan, isOld, dateStamp, createUpdate.localFiles);
+
+    var head = new StringBuilder();
+    buildHead(localScriptName, globalScripts, createUpdate.targetDir, ing, head);
+    L<ByteBuffer> result = new L(subs.size() * 2 + 5);
+    result.add(template.htmlStart.duplicate());
+    result.add(StandardCharsets.UTF_8.encode(CharBuffer.wrap(head)));
+    result.add(template.bodyStart.duplicate());
+    buildContent(mainSource, scan.contentStart(isOld), scan.contentEnd(isOld), subs, result);
+    result.add(template.end.duplicate());
+    return result.toArray(new ByteBuffer[0]);
 }
 
 
-String buildDateStamp(String old, boolean bumpTheDate, String updatedDt) {
+String buildDateStamp(CharSequence old, HtmlScan oldScan, boolean bumpTheDate, String updatedDt) {
     if (!bumpTheDate) { // Just the core files were updated, the doc itself wasn't
-        int indStart = old.indexOf(stampOpen);
-        int indEnd = old.indexOf(stampClose);
-        return old.substring(indStart, indEnd + stampClose.length());
+        return old.subSequence(oldScan.stampStart, oldScan.stampEnd + stampClose.length()).toString();
     }
     String createdDt = "";
-    if (old == "") {
+    if (old.length() == 0) {
         createdDt = updatedDt;
     } else {
-        createdDt = parseCreatedDate(old);
+        createdDt = parseCreatedDate(old, oldScan);
     }
     
     if (createdDt.equals(updatedDt)) {
@@ -277,9 +1127,9 @@ String buildDateStamp(String old, boolean bumpTheDate, String updatedDt) {
 
 void buildHead(String localScriptName, L<String> globalScripts, Subfolder subf, Ingestion ing,
                StringBuilder result) {
-    result.append(templateHtmlStart);
+    /// The variable part of the <head>, which goes between the first two template segments
     result.append("    <script type=\"text/javascript\" src=\"");
-    result.append(appSuburl + coreVersions[indexOf(fixedCoreFiles, "script.js")]);
+    result.append(coreLink("script.js"));
     result.append("\"></script>\n");
     for (String gs : globalScripts) {
         if (globalVersions.containsKey(gs)) {
@@ -292,23 +1142,39 @@ void buildHead(String localScriptName, L<String> globalScripts, Subfolder subf,
                 + "\"></script>\n");
     }
     result.append("    <link rel=\"stylesheet\" href=\"");
-    result.append(appSuburl + coreVersions[indexOf(fixedCoreFiles, "style.css")]);
+    result.append(coreLink("style.css"));
     result.append("\" />\n");
-    buildNavPart(ing.navPart, subf, result);
-    result.append("\n</head>\n");
+    buildNavPart(ing, subf, result);
 }
  
  
-void buildNavPart(String navTree, Subfolder subf, StringBuilder result) {
+void buildNavPart(Ingestion ing, Subfolder subf, StringBuilder result) {
     result.append("""
         <script type="application/json" id="_navState">{
             "address":""");
     result.append(" \"");
     result.append(subf.cont);
     result.append("\",\n");
-    result.append("    \"nav\": [\n");
-    result.append(navTree);
-    result.append("\n    ]\n");
+    if (settings.externalNav) {
+        result.append("    \"navUrl\": \"" + appSuburl + coreAliasName(navFile) + "\"\n");
+    } else if (settings.prunedNav) {
+        // The full nav is behind `navUrl`, for when the visitor leaves this branch
+        result.append("    \"navUrl\": \"" + appSuburl + coreAliasName(navFile) + "\",\n");
+        L<Integer> crumbs = new L();
+        String pruned = ing.nav.toPrunedJson(subf, crumbs);
+        result.append("    \"crumbs\": [");
+        for (int i = 0; i < crumbs.size(); i++) {
+            result.append((i > 0) ? ", " : "").append(crumbs.get(i));
+        }
+        result.append("],\n");
+        result.append("    \"nav\": [\n");
+        result.append(pruned);
+        result.append("\n    ]\n");
+    } else {
+        result.append("    \"nav\": [\n");
+        result.append(ing.navPart);
+        result.append("\n    ]\n");
+    }
     result.append("}</script>");
 }
 
@@ -316,58 +1182,64 @@ void buildNavPart(String navTree, Subfolder subf, StringBuilder result) {
 static String extractContent(String html, boolean isOld) {
     /// For an old file, it extracts the contents of the `<div id="_content">` tag
     /// For a new file, it extracts the contents of the `<body>` tag
-    int indStart;
-    int indEnd;
-    if (isOld) {
-        indStart = html.indexOf(contentStartMarker) + contentStartMarker.length();
-        indEnd = html.indexOf(contentEndMarker);
-    } else {
-        indStart = html.indexOf("<body>") + 6;
-        indEnd = html.indexOf("</body>");
-    }
-    return html.substring(indStart, indEnd);
+    return HtmlScan.of(html).content(html, isOld);
 }
 
 
-static void buildBody(String content, L<Substitution> subs, StringBuilder result) {
-    result.append(templateBodyStart);
-    buildContent(content, subs, result);
-    result.append(contentEndMarker);
-    result.append(templateEnd);
+static void buildContent(CharSequence html, int start, int end, L<Substitution> subs,
+                         L<ByteBuffer> result) {
+    /// Encodes the content, which is `html` from `start` to `end`, with the substitutions
+    /// (relative to `start`) applied. No substrings of the content are made
+    int curr = start;
+    for (var sub : subs) {
+        addEncoded(html, curr, start + sub.startByte, result);
+        addEncoded(sub.text, 0, sub.text.length(), result);
+        curr = start + sub.endByte;
+    }
+    addEncoded(html, curr, end, result);
 }
 
 
-static void buildContent(String content, L<Substitution> subs, StringBuilder result) {
-    int curr = 0;
-    for (var sub : subs) {
-        result.append(content.substring(curr, sub.startByte));
-        result.append(sub.text);
-        curr = sub.endByte;
+static void addEncoded(CharSequence s, int start, int end, L<ByteBuffer> result) {
+    if (end <= start) {
+        return;
+    }
+    if (s instanceof HtmlBytes bytes) { // already UTF-8
+        result.add(bytes.slice(start, end));
+    } else {
+        result.add(StandardCharsets.UTF_8.encode(CharBuffer.wrap(s, start, end)));
     }
-    result.append(content.substring(curr, content.length()));
 }
 
 
-String parseHead(String html, Dir targetDir, boolean isOld, /* out */ L<String> globalCoreScripts) {
-    /// Parses the <head> tag of the HTML and determines if it has the local script "local.js"
+static String parseHead(String html, LocalFiles localFiles, boolean isOld,
+                        /* out */ L<String> globalCoreScripts) {
+    return parseHead(HtmlScan.of(html), localFiles, isOld, globalCoreScripts);
+}
+
+
+static String parseHead(HtmlScan scan, LocalFiles localFiles, boolean isOld,
+                        /* out */ L<String> globalCoreScripts) {
+    /// Determines from the scripts in the <head> tag if it has the local script "local.js"
     /// as well as a list of core extra scripts this document may require
     String localScriptName = "";
-    int start = html.indexOf("<head>");
-    int end = html.indexOf("</head>");
-    String head = html.substring(start + 6, end);
-    L<Substitution> scripts = parseSrcAttribs(head, "script");
-    for (var script : scripts) {
+    for (var script : scan.scriptSrcs) {
+        if (script.startByte < scan.headStart || script.endByte > scan.headEnd) {
+            continue; // a script in the body
+        }
         String scrName = script.text;
         if (!scrName.endsWith(".js")) {
             throw new RuntimeException("Script extension must be .js!");
         }
-        if (scrName.equals("local.js")) {
-            var existingFiles = fs.listFiles(targetDir);
-            L<String> existingLocals = getNamesWithPrefix(new UnvName("local.js"), existingFiles);
-            localScriptName = getNameWithMaxVersion(existingLocals).f1;
+        if (scrName.equals("local.js") || (isOld && new UnvName(scrName).cont.equals("local.js"))) {
+            localScriptName = localFiles.versions.getOrDefault(new UnvName("local.js"), "");
         } else {
-            if (scrName.startsWith(appSuburl)) {
-                globalCoreScripts.add(shaveOffExtension(scrName.substring(appSuburl.length())));
+            if (scrName.startsWith(appSuburl)) { // an old doc, so the name is versioned
+                String versioned = scrName.substring(appSuburl.length());
+                if (isCoreName(versioned)) {
+                    continue; // the core script, which every head links to anyway
+                }
+                globalCoreScripts.add(shaveOffExtension(new UnvName(versioned).cont));
             } else if (scrName.startsWith("../")) {
                 globalCoreScripts.add(shaveOffExtension(scrName.substring(3)));
             } else {
@@ -385,21 +1257,35 @@ String parseHead(String html, Dir targetDir, boolean isOld, /* out */ L<String>
 static L<Substitution> parseBodySubstitutions(String body, String dateStamp,
                                               LocalFiles localFiles) {
     /// Produces a list of substitutions sorted by start byte.
+    HtmlScan scan = HtmlScan.of(body);
+    scan.bodyStart = -6; // so that the whole string counts as the body, `<body>` being 6 long
+    scan.bodyEnd = body.length();
+    return parseBodySubstitutions(scan, false, dateStamp, localFiles);
+}
+
+
+static L<Substitution> parseBodySubstitutions(HtmlScan scan, boolean isOld, String dateStamp,
+                                              LocalFiles localFiles) {
+    /// Produces a list of substitutions sorted by start byte, relative to the start of content
     L<Substitution> result = new L();
-    int start = 0; // 6 to skip the `<body>`
+    int start = scan.contentStart(isOld);
+    int end = scan.contentEnd(isOld);
 
     // the date stamp
-    int indStampOpen = body.indexOf(stampOpen);
-    if (indStampOpen == -1) { // A new doc being created
-        result.add(new Substitution(start, start, dateStamp));
+    if (scan.stampStart < start || scan.stampStart >= end) { // A new doc being created
+        result.add(new Substitution(0, 0, dateStamp));
     } else {
-        int indStampClose = body.indexOf(stampClose);
-        result.add(new Substitution(indStampOpen, indStampClose + stampClose.length(), dateStamp));
+        result.add(new Substitution(scan.stampStart - start,
+                                    scan.stampEnd + stampClose.length() - start, dateStamp));
+    }
+    for (var img : scan.imgSrcs) {
+        if (img.startByte < start || img.endByte > end) {
+            continue;
+        }
+        // Links to anything but a local file, like an external URL, are kept as they are
+        String version = localFiles.versions.getOrDefault(new UnvName(img.text), img.text);
+        result.add(new Substitution(img.startByte - start, img.endByte - start, version));
     }
-    var existingAttribs = parseSrcAttribs(body, "img");
-    result.append(existingAttribs.trans(x ->
-            new Substitution(x.startByte, x.endByte,
-                    localFiles.versions.get(new UnvName(x.text)))));
     return result;
 }
 
@@ -410,58 +1296,324 @@ static L<Substitution> parseSrcAttribs(String html, String tag) {
     String opener = "<" + tag;
     int ind = html.indexOf(opener);
     while (ind > -1) {
-        int indClose = html.indexOf(">", ind);
-        if (indClose == -1) {
-            throw new RuntimeException("Unclosed tag in the HTML");
-        }
-        int indSrc = html.indexOf("src=\"", ind) + 5;
-        if (indSrc < 5)  {
-            ind = html.indexOf(opener, ind + 1);
-            continue; // a <script> with no src, for example JSON
-        }
-        int indEndSrc = html.indexOf("\"", indSrc); // 5 for the `src="`
-        String attrib = html.substring(indSrc, indEndSrc);
-        print("attrib:");
-        print(attrib);
-        result.add(new Substitution(indSrc, indEndSrc, attrib));
-        ind = html.indexOf(opener, ind + 1);
+        int indAfter = ind + opener.length();
+        if (indAfter < html.length() && !HtmlScan.isTagNameEnd(html.charAt(indAfter))) {
+            ind = html.indexOf(opener, indAfter); // like `<imgur>`, a different tag
+            continue;
+        }
+        ind = HtmlScan.scanTag(html, indAfter, result);
+        ind = html.indexOf(opener, ind);
     }
     return result;
 }
 
 static String parseCreatedDate(String old) {
+    return parseCreatedDate(old, HtmlScan.of(old));
+}
+
+
+static String parseCreatedDate(CharSequence old, HtmlScan scan) {
     /// Parses the created date from the old document
-    int indStart = old.indexOf(stampOpen);
-    int indEnd = old.indexOf(stampClose);
-    int indDateStart = indStart + stampOpen.length();
-    String datePart = old.substring(indDateStart, indEnd);
+    int indDateStart = scan.stampStart + stampOpen.length();
+    String datePart = old.subSequence(indDateStart, scan.stampEnd).toString();
     return datePart.substring(25, 35); // Skipping length of `<div id="_dtSt">Created: `
 }
 
 
+static String parseUpdatedDate(CharSequence old, HtmlScan scan) {
+    /// Parses the updated date from the old document. It's the created date if there is none
+    int indUpdated = HtmlScan.indexOf(old, ", updated: ", scan.stampStart);
+    if (indUpdated < 0 || indUpdated > scan.stampEnd) {
+        return parseCreatedDate(old, scan);
+    }
+    int indDateStart = indUpdated + 11; // length of `, updated: `
+    return old.subSequence(indDateStart, indDateStart + 10).toString();
+}
+
+
 void createUpdateDocs(Ingestion ing, boolean isUpdate) {
     L<CreateUpdate> cus = (isUpdate) ? ing.updateDocs : ing.createDocs;
+    if (ioStage == null || cus.size() < 2) {
+        for (CreateUpdate cu : cus) {
+            createUpdateDoc(cu, isUpdate, ing);
+        }
+        return;
+    }
+    // A pipeline: the moves and reads of a doc, its render and its writes are three stages on
+    // their own threads, so the I/O of some docs overlaps the rendering of others. A doc takes a
+    // permit before its first stage and gives it back after its last, so when a stage falls
+    // behind the ones before it wait, and only `docsInFlight` docs are ever in memory.
+    // Every doc touches only its own target and source dirs, so the docs are independent.
+    // `coreVersions`, `globalVersions` and `ing.navPart` are only read from here on, and the
+    // submission to the stages publishes them safely to their threads
+    var inFlight = new Semaphore(settings.docsInFlight);
+    var failure = new AtomicReference<Throwable>();
     for (CreateUpdate cu : cus) {
-        Dir targetDir = new Dir(blogDir, cu.targetDir);
+        inFlight.acquireUninterruptibly();
+        if (failure.get() != null) { // checked after the wait, in which a doc may have failed
+            inFlight.release();
+            break;
+        }
+        CompletableFuture.supplyAsync(() -> loadDoc(cu, isUpdate, ing), ioStage)
+            .thenApplyAsync(job -> (job == null) ? null : renderDoc(job, ing), renderStage)
+            .thenAcceptAsync(job -> {
+                if (job != null) {
+                    writeDoc(job);
+                }
+            }, ioStage)
+            .whenComplete((x, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, (e instanceof CompletionException) ? e.getCause() : e);
+                }
+                inFlight.release();
+            });
+    }
+    inFlight.acquireUninterruptibly(settings.docsInFlight); // all the docs are through
+    if (failure.get() != null) {
+        throw (failure.get() instanceof RuntimeException re)
+                ? re : new RuntimeException(failure.get());
+    }
+}
 
-        String oldContent = isUpdate ? fs.readTextFile(targetDir, "i.html") : "";
-        String freshContent = buildDocument(cu, oldContent, todayDt, ing);
-        fs.saveOverwriteFile(new Dir(blogDir, cu.targetDir), "i.html", freshContent);
 
-        for (var localToDelete : cu.localFiles.filesToDelete) {
-            fs.deleteIfExists(new Dir(blogDir, cu.targetDir), localToDelete);
-        }
-        if (cu.sourceDir != null)  { // it's null iff the update is caused by a core file change
-            fs.deleteDirIfExists(new Dir(ingestDir, cu.sourceDir));
+static Executor stagePool(int threads, String name) {
+    return Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    });
+}
+
+
+void createUpdateDoc(CreateUpdate cu, boolean isUpdate, Ingestion ing) {
+    /// All the stages of a doc in a row
+    DocJob job = loadDoc(cu, isUpdate, ing);
+    if (job != null) {
+        writeDoc(renderDoc(job, ing));
+    }
+}
+
+
+static class DocJob {
+    /// A doc going through the stages of `createUpdateDocs`
+    CreateUpdate cu;
+    boolean isUpdate;
+    Dir targetDir;
+    CharSequence oldContent; // "" or `HtmlBytes`, like `newContent`
+    CharSequence newContent; // "", the uploaded doc as `HtmlBytes`, or `cu.newContent` if it's read
+    RenderEvent event = new RenderEvent();
+    String cause;
+    RenderKey key; // of the render, or of the previous one on a cache hit
+    boolean hit; // the previous render is still good, so there's nothing to render or write
+    boolean unchanged; // rendered into the same bytes as are on disk, so there's nothing to write
+    ByteBuffer[] freshContent;
+    ByteBuffer compressed; // null unless gzip is on
+}
+
+
+record RenderKey(String source, String deps) {
+    /// What a render of a doc depended on. `source` is the hash of the uploaded doc and the date
+    /// it was stamped with, or empty if the doc was rebuilt from itself with a new date. `deps`
+    /// is the hash of all the versions its page links to, see `depsKey`
+}
+
+
+String depsKey(Subfolder doc, LocalFiles localFiles, Ingestion ing) {
+    /// Everything outside of its source that goes into a page: the template, the core links, the
+    /// nav, and the versions of the global scripts and local files the doc includes
+    var key = new StringBuilder(template.version);
+    key.append('|').append(coreLink("script.js")).append('|').append(coreLink("style.css"));
+    key.append('|').append(settings.externalNav ? "externalNav"
+            : settings.prunedNav ? ing.nav.toPrunedJson(doc, new L()) : ing.navHash());
+    L<String> uses = catalog().usesOf(doc);
+    Collections.sort(uses);
+    for (String gs : uses) {
+        key.append('|').append(gs).append('=').append(globalVersions.get(gs));
+    }
+    var locals = new TreeMap<String, String>();
+    localFiles.versions.forEach((unv, version) -> locals.put(unv.cont, version));
+    locals.forEach((unv, version) -> key.append('|').append(unv).append('=').append(version));
+    return contentHash(key.toString().getBytes(StandardCharsets.UTF_8));
+}
+
+
+DocJob loadDoc(CreateUpdate cu, boolean isUpdate, Ingestion ing) {
+    /// The I/O before a render: moving in the new local files and reading the sources.
+    /// Null if the doc is to be left alone
+    if (ing.done.containsKey(cu.targetDir) || outOfTime()) {
+        return null;
+    }
+    RenderKey previous = catalog.renderKeys.get(cu.targetDir);
+    if (cu.sourceDir == null && previous != null
+            && previous.deps().equals(depsKey(cu.targetDir, cu.localFiles, ing))) {
+        // A core update that changed nothing this doc links to, so the doc isn't even read
+        metrics.count("blog_render_cache_hits_total", "", 1);
+        return null;
+    }
+    var job = new DocJob();
+    job.event.begin();
+    job.isUpdate = isUpdate;
+    job.targetDir = new Dir(blogDir, cu.targetDir);
+    if (cu.dirPlan != null) {
+        await(applyMovesAsync(cu.dirPlan));
+    }
+    // Read here and dropped after the write, so only the docs being rendered are in memory.
+    // Big ones are mapped rather than read, so they take no heap at all
+    job.cu = cu;
+    job.newContent = cu.isUnread
+            ? new HtmlBytes(fs.mapFile(new Dir(ingestDir, cu.sourceDir), "i.html"))
+            : cu.newContent;
+    String source = !cu.hasNewContent ? ""
+            : HtmlBytes.of(job.newContent).hash() + "@" + todayDt;
+    if (cu.sourceDir == null && previous != null) {
+        source = previous.source(); // rebuilt from itself with the same dates
+    }
+    if (cu.hasNewContent && previous != null && previous.source().equals(source)
+            && previous.deps().equals(depsKey(cu.targetDir, cu.localFiles, ing))) {
+        // The same upload again on the same day
+        metrics.count("blog_render_cache_hits_total", "", 1);
+        job.hit = true;
+        job.key = previous;
+        return job;
+    }
+    job.key = new RenderKey(source, null);
+    job.oldContent = isUpdate ? new HtmlBytes(fs.mapFile(job.targetDir, "i.html")) : "";
+    return job;
+}
+
+
+DocJob renderDoc(DocJob job, Ingestion ing) {
+    if (job.hit) {
+        return job;
+    }
+    CreateUpdate cu = job.cu;
+    long startNs = System.nanoTime();
+    job.freshContent = buildDocument(cu, job.oldContent, job.newContent, todayDt, ing);
+    metrics.observe("blog_doc_render_seconds", "", (System.nanoTime() - startNs) / 1e9);
+    // After the render, which has recorded the global scripts the doc includes now
+    job.key = new RenderKey(job.key.source(), depsKey(cu.targetDir, cu.localFiles, ing));
+    if (job.isUpdate && sameBytes(job.freshContent, ((HtmlBytes)job.oldContent).bytes)) {
+        // Not rewriting it keeps its mtime, and with it the caches of browsers and proxies
+        metrics.count("blog_docs_unchanged_total", "", 1);
+        job.unchanged = true;
+        return job;
+    }
+    job.cause = !job.isUpdate ? "created"
+            : (cu.sourceDir == null) ? "core"
+            : cu.hasNewContent ? "uploaded" : "assets";
+    metrics.count("blog_docs_rebuilt_total", Metrics.label("cause", job.cause), 1);
+    // Compressed before the write consumes the buffers, and in parallel when the render pool is on
+    job.compressed = (settings.gzip) ? gzip(job.freshContent) : null;
+    return job;
+}
+
+
+void writeDoc(DocJob job) {
+    /// The I/O after a render: the doc, its `.gz`, and the cleanup of what it replaced
+    CreateUpdate cu = job.cu;
+    Dir targetDir = job.targetDir;
+    catalog.renderKeys.put(cu.targetDir, job.key);
+    if (!job.hit && !job.unchanged) {
+        writeRendered(job);
+    }
+
+    L<CompletableFuture<Boolean>> cleanups = cu.localFiles.filesToDelete.trans(
+            localToDelete -> afs.deleteIfExists(targetDir, localToDelete));
+    if (cu.sourceDir != null)  { // it's null iff the update is caused by a core file change
+        cleanups.add(afs.deleteDirIfExists(new Dir(ingestDir, cu.sourceDir)));
+    }
+    await(CompletableFuture.allOf(cleanups.toArray(new CompletableFuture[0])));
+    if (journal != null) {
+        journal.done(cu.targetDir, catalog.usesOf(cu.targetDir));
+    }
+}
+
+
+void writeRendered(DocJob job) {
+    CreateUpdate cu = job.cu;
+    Dir targetDir = job.targetDir;
+    long outputBytes = 0;
+    for (ByteBuffer part : job.freshContent) {
+        outputBytes += part.remaining();
+    }
+    fs.saveOverwriteFile(targetDir, "i.html", job.freshContent);
+    if (job.compressed != null) {
+        fs.saveOverwriteFile(targetDir, "i.html" + gzExt, new ByteBuffer[] { job.compressed });
+    }
+    RenderEvent event = job.event;
+    event.end();
+    if (event.shouldCommit()) {
+        event.targetDir = cu.targetDir.cont;
+        event.cause = job.cause;
+        event.sourceBytes = job.oldContent.length() + job.newContent.length();
+        event.outputBytes = outputBytes;
+        event.commit();
+    }
+    onDocWritten.accept(cu.targetDir);
+}
+
+
+static boolean sameBytes(ByteBuffer[] parts, ByteBuffer bytes) {
+    int ind = 0;
+    for (ByteBuffer part : parts) {
+        int len = part.remaining();
+        if (ind + len > bytes.limit() || !part.equals(bytes.slice(ind, len))) {
+            return false;
         }
+        ind += len;
     }
+    return ind == bytes.limit();
 }
 
 
 void deleteDocs(Ingestion ing) {
     for (Subfolder toDel : ing.deleteDocs) {
+        if (ing.done.containsKey(toDel) || outOfTime()) {
+            continue;
+        }
         fs.deleteDirIfExists(new Dir(blogDir, toDel));
+        onDocWritten.accept(toDel);
+        metrics.count("blog_docs_deleted_total", "", 1);
+        if (journal != null) {
+            journal.done(toDel, new L());
+        }
     }
+    for (Subfolder toDiscard : ing.discardDirs) {
+        fs.deleteDirIfExists(new Dir(ingestDir, toDiscard));
+    }
+}
+
+
+static boolean isCoreName(String fN) {
+    /// A fixed core file under any of its names, like `script-3.js` or `script.latest.js`, or
+    /// any other alias
+    String shortName = shaveOffExtension(new UnvName(fN).cont);
+    return fN.contains(".latest.")
+            || Arrays.stream(fixedCoreFiles).anyMatch(x -> shaveOffExtension(x).equals(shortName));
+}
+
+
+static String coreAliasName(String fixed) {
+    /// "style.css" -> "style.latest.css"
+    String withoutExt = shaveOffExtension(fixed);
+    return withoutExt + ".latest" + fixed.substring(withoutExt.length());
+}
+
+
+static Subfolder subfolderOf(Dir targetDir) {
+    /// "/var/www/blog/blog/a/b" -> "a/b"
+    return subfolderOf(targetDir, blogDir);
+}
+
+
+static Subfolder subfolderOf(Dir dir, Dir root) {
+    return new Subfolder(Paths.get(root.cont).relativize(Paths.get(dir.cont)).toString());
+}
+
+
+static String assetKey(Subfolder subf, String fn) {
+    /// The path of a file relative to the blog dir. `subf` is null for the root
+    return (subf == null) ? fn : subf.cont + "/" + fn;
 }
 
 
@@ -516,28 +1668,215 @@ static Tu<String, Integer> getNameWithMaxVersion(L<String> filenames) {
 
 
 static String makeNameBumpedVersion(UnvName unversionedName, L<FileInfo> existingFiles) {
-    /// `file.js` (`file-2.js` `file-3.js`) => `file-4.js`
-    if (existingFiles.size() == 0) {
-        return unversionedName.cont;
-    } else {
-        var versionsOfSameFile = existingFiles.transIf(
-                x -> new UnvName(x.name).equals(unversionedName),
-                x -> x.name);
+    /// `file.js` (`file-2.js` `file-3.js`) => `file-4.js`. For many files of the same dir,
+    /// build a `VersionIndex` once instead
+    return VersionIndex.of(existingFiles).bump(unversionedName);
+}
+
+
+//}}}
+//{{{ HtmlScan
+
+static final class HtmlScan {
+    /// The positions of everything the renderer looks for in a document, found in one linear
+    /// pass. Each marker position is that of its first occurrence, or -1 if there is none
+    int headStart = -1; // after `<head>`
+    int headEnd = -1; // at `</head>`
+    int bodyStart = -1; // at `<body>`
+    int bodyEnd = -1; // at `</body>`
+    int contentStart = -1; // at `contentStartMarker`
+    int contentEnd = -1; // at `contentEndMarker`
+    int stampStart = -1; // at `stampOpen`
+    int stampEnd = -1; // at `stampClose`
+    L<Substitution> scriptSrcs = new L(); // the `src` attributes of all `<script>` tags
+    L<Substitution> imgSrcs = new L(); // the `src` attributes of all `<img>` tags
+
+    static HtmlScan of(CharSequence html) {
+        /// Works the same on a `String` and on `HtmlBytes`, with the positions in chars or bytes
+        var result = new HtmlScan();
+        int n = html.length();
+        int ind = indexOf(html, '<', 0);
+        while (ind > -1) {
+            int next = ind + 1;
+            if (startsWith(html, "<script", ind) && isTagEndAt(html, ind + 7)) {
+                next = scanTag(html, ind + 7, result.scriptSrcs);
+            } else if (startsWith(html, "<img", ind) && isTagEndAt(html, ind + 4)) {
+                next = scanTag(html, ind + 4, result.imgSrcs);
+            } else if (startsWith(html, "<head>", ind)) {
+                result.headStart = firstOf(result.headStart, ind + 6);
+            } else if (startsWith(html, "</head>", ind)) {
+                result.headEnd = firstOf(result.headEnd, ind);
+            } else if (startsWith(html, "<body>", ind)) {
+                result.bodyStart = firstOf(result.bodyStart, ind);
+            } else if (startsWith(html, "</body>", ind)) {
+                result.bodyEnd = firstOf(result.bodyEnd, ind);
+            } else if (startsWith(html, contentStartMarker, ind)) {
+                result.contentStart = firstOf(result.contentStart, ind);
+            } else if (startsWith(html, contentEndMarker, ind)) {
+                result.contentEnd = firstOf(result.contentEnd, ind);
+            } else if (startsWith(html, stampOpen, ind)) {
+                result.stampStart = firstOf(result.stampStart, ind);
+            } else if (startsWith(html, stampClose, ind)) {
+                result.stampEnd = firstOf(result.stampEnd, ind);
+            }
+            ind = (next < n) ? indexOf(html, '<', next) : -1;
+        }
+        return result;
+    }
+
+    static int scanTag(CharSequence html, int ind, L<Substitution> srcs) {
+        /// Scans the attributes of a tag, starting right after its name, up to its closing `>`.
+        /// Quoted values are skipped whole, so a `>` or `src="` inside them doesn't count.
+        /// Adds the `src` attribute, if any, to `srcs`. Returns the index after the tag
+        int n = html.length();
+        boolean srcFound = false;
+        while (ind < n) {
+            char c = html.charAt(ind);
+            if (c == '>') {
+                return ind + 1;
+            } else if (c == '"' || c == '\'') {
+                int indQuote = indexOf(html, c, ind + 1);
+                if (indQuote < 0) {
+                    break;
+                }
+                ind = indQuote + 1;
+            } else if (!srcFound && startsWith(html, "src=\"", ind)
+                        && isSpace(html.charAt(ind - 1))) {
+                int indSrc = ind + 5; // 5 for the `src="`
+                int indEndSrc = indexOf(html, '"', indSrc);
+                if (indEndSrc < 0) {
+                    break;
+                }
+                srcs.add(new Substitution(indSrc, indEndSrc,
+                                          html.subSequence(indSrc, indEndSrc).toString()));
+                srcFound = true;
+                ind = indEndSrc + 1;
+            } else {
+                ind++;
+            }
+        }
+        throw new RuntimeException("Unclosed tag in the HTML");
+    }
+
+    String content(CharSequence html, boolean isOld) {
+        return html.subSequence(contentStart(isOld), contentEnd(isOld)).toString();
+    }
+
+    int contentStart(boolean isOld) {
+        /// For an old file, the content is that of the `<div id="_content">` tag,
+        /// for a new file it's that of the `<body>` tag
+        return isOld ? contentStart + contentStartMarker.length() : bodyStart + 6;
+    }
+
+    int contentEnd(boolean isOld) {
+        return isOld ? contentEnd : bodyEnd;
+    }
+
+    static boolean isTagEndAt(CharSequence html, int ind) {
+        return ind >= html.length() || isTagNameEnd(html.charAt(ind));
+    }
+
+    static boolean isTagNameEnd(char c) {
+        return c == '>' || c == '/' || isSpace(c);
+    }
+
+    static boolean isSpace(char c) {
+        /// Only ASCII whitespace separates HTML attributes, and it's all that `HtmlBytes` can see
+        return c <= ' ' && Character.isWhitespace(c);
+    }
+
+    static int indexOf(CharSequence html, char c, int from) {
+        if (html instanceof String s) {
+            return s.indexOf(c, from);
+        }
+        for (int i = Math.max(from, 0); i < html.length(); i++) {
+            if (html.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int indexOf(CharSequence html, String needle, int from) {
+        if (html instanceof String s) {
+            return s.indexOf(needle, from);
+        }
+        int ind = indexOf(html, needle.charAt(0), from);
+        while (ind > -1 && !startsWith(html, needle, ind)) {
+            ind = indexOf(html, needle.charAt(0), ind + 1);
+        }
+        return ind;
+    }
 
-        int maxExistingVersion =
-                getNameWithMaxVersion(existingFiles.transIf(
-                        x -> new UnvName(x.name).equals(unversionedName),
-                        x -> x.name)).f2;
-        if (maxExistingVersion == 0) {
-            return unversionedName.cont;
+    static boolean startsWith(CharSequence html, String prefix, int ind) {
+        if (html instanceof String s) {
+            return s.startsWith(prefix, ind);
+        }
+        if (ind < 0 || ind + prefix.length() > html.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (html.charAt(ind + i) != prefix.charAt(i)) {
+                return false;
+            }
         }
-        int newVersion = maxExistingVersion + 1;
-        int indLastDot = unversionedName.cont.lastIndexOf(".");
-        return unversionedName.cont.substring(0, indLastDot) + "-" + newVersion
-                + unversionedName.cont.substring(indLastDot);
+        return true;
+    }
+
+    private static int firstOf(int existing, int ind) {
+        return (existing == -1) ? ind : existing;
     }
 }
 
+//}}}
+//{{{ HtmlBytes
+
+static final class HtmlBytes implements CharSequence {
+    /// A UTF-8 doc seen as one char per byte, so that `HtmlScan` and the renderer can work on
+    /// the bytes of a file, mapped or read, without decoding it. All the markers they look for
+    /// are ASCII, and no byte of a multi-byte UTF-8 char is in the ASCII range, so they are
+    /// found at the same places as in the decoded text, just at byte offsets. Only the small
+    /// parts that get parsed, like the `src` names and the date stamp, are decoded by `toString`
+    final ByteBuffer bytes; // from 0 to the limit, never moved
+
+    HtmlBytes(ByteBuffer bytes) {
+        this.bytes = bytes.slice();
+    }
+
+    static HtmlBytes of(CharSequence html) {
+        return (html instanceof HtmlBytes b) ? b
+                : new HtmlBytes(ByteBuffer.wrap(html.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int ind) {
+        return (char)(bytes.get(ind) & 0xFF);
+    }
+
+    @Override
+    public HtmlBytes subSequence(int start, int end) {
+        return new HtmlBytes(slice(start, end));
+    }
+
+    ByteBuffer slice(int start, int end) {
+        /// A view of the bytes for a gathering write, which the write may consume
+        return bytes.slice(start, end - start);
+    }
+
+    String hash() {
+        return contentHash(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
+}
 
 //}}}
 //{{{ Ingestion
@@ -546,12 +1885,18 @@ static class Ingestion {
     L<CreateUpdate> createDocs = new L();
     L<CreateUpdate> updateDocs = new L();
     L<Subfolder> deleteDocs = new L(); // list of dirs like `a/b/c`
+    L<Subfolder> discardDirs = new L(); // ingest dirs like `a.b.c` that brought nothing new
+    L<DirPlan> dirs = new L(); // the local files of every ingest dir that isn't a delete
+    // Docs already written or deleted by an interrupted run, with the global scripts they use
+    Map<Subfolder, L<String>> done = new HashMap();
     Set<Subfolder> allSubfs = new HashSet();
     NavTree nav;
     String navPart; // the navigation JSON embedded in <head>
+    private String navHash;
+    boolean coreUpdated; // all the docs are rebuilt because of the core files or the settings
 
     public void printOut() {
-        print("Ingestion constructor, count of create " + createDocs.size()
+        Log.debug(() -> "Ingestion constructor, count of create " + createDocs.size()
                 + ", updateDocs count = " + updateDocs.size() + ", deleteDocs count = "
                 + deleteDocs.size() + ", allDirs = " + allSubfs.size());
     }
@@ -561,7 +1906,14 @@ static class Ingestion {
         this.navPart = this.nav.toJson();
     }
 
-    private NavTree buildThematic() {
+    synchronized String navHash() {
+        if (navHash == null) {
+            navHash = contentHash(navPart.getBytes(StandardCharsets.UTF_8));
+        }
+        return navHash;
+    }
+
+    NavTree buildThematic() {
         L<Doc> allDocs = new L();
         for (var a : allSubfs) {
             allDocs.add(new Doc(a)); 
@@ -614,15 +1966,20 @@ static class Ingestion {
 static class LocalFiles {
     Map<UnvName, String> versions = new HashMap();
     L<String> filesToDelete = new L();
+    boolean changed; // were any new versions moved in?
 }
 
 
 static class CreateUpdate {
     Subfolder sourceDir; // source dir like `a.b.c`
     Subfolder targetDir; // target dir like `a/b/c`
-    String newContent; // content of the new "i.html" file, if it's present
+    String newContent; // content of the new "i.html" file, if it's present and read already
+    boolean hasNewContent; // is there a new "i.html"? Uploads are only read when rendered
+    boolean isUnread; // the new "i.html" is still in the source dir, so `newContent` is unset
+    long newContentBytes;
     LocalFiles localFiles; // map from prefix to full filename for local files
     boolean bumpTheDate; // should we bump the updated date? we shouldn't for global file updates
+    DirPlan dirPlan; // the moves of its local files, done just before it's rendered
 
     public CreateUpdate(Subfolder sourceDir, Subfolder targetDir, LocalFiles localFiles,
             boolean bumpTheDate)  {
@@ -638,9 +1995,81 @@ static class CreateUpdate {
         this.sourceDir = sourceDir;
         this.targetDir = targetDir;
         this.newContent = newContent;
+        this.hasNewContent = true;
+        this.newContentBytes = newContent.length();
         this.localFiles = localFiles;
         this.bumpTheDate = true; 
     }
+
+    static CreateUpdate uploaded(Subfolder sourceDir, Subfolder targetDir, LocalFiles localFiles,
+                                 long newContentBytes) {
+        /// A new "i.html" in the source dir, to be read when the doc is rendered
+        var result = new CreateUpdate(sourceDir, targetDir, localFiles, true);
+        result.hasNewContent = true;
+        result.isUnread = true;
+        result.newContentBytes = newContentBytes;
+        return result;
+    }
+}
+
+
+static class Plan {
+    /// Everything a run will do, from a read-only pass over the ingest dir and the catalog.
+    /// A run applies it, `--plan` only describes it
+    CorePlan core;
+    Ingestion ing;
+
+    public Plan(CorePlan core, Ingestion ing) {
+        this.core = core;
+        this.ing = ing;
+    }
+
+    boolean isEmpty() {
+        /// Nothing to move, write or delete, so nothing to journal or save either
+        return core.coreBumps.isEmpty() && core.globalBumps.isEmpty() && core.unchanged.isEmpty()
+            && core.flags.isEmpty() && !core.docsAffected && ing.createDocs.isEmpty()
+            && ing.updateDocs.isEmpty() && ing.deleteDocs.isEmpty() && ing.discardDirs.isEmpty()
+            && ing.dirs.isEmpty();
+    }
+}
+
+
+static class CorePlan {
+    L<AssetMove> coreBumps = new L(); // fixed core files, from the ingest dir to the blog dir
+    L<AssetMove> globalBumps = new L(); // extra global scripts, likewise
+    L<String> unchanged = new L(); // ingest files identical to their current versions
+    String[] coreVersions = new String[fixedCoreFiles.length]; // the full names after the run
+    Map<String, String> flags = new HashMap(); // only the changed ones
+    boolean docsAffected; // do all the docs need rebuilding?
+}
+
+
+static class DirPlan {
+    Subfolder sourceDir; // ingest dir like `a.b.c`
+    Subfolder targetDir; // target dir like `a/b/c`
+    L<AssetMove> moves = new L(); // the new versions to move in
+    LocalFiles localFiles; // as they will be after the moves
+
+    public DirPlan(Subfolder sourceDir, Subfolder targetDir) {
+        this.sourceDir = sourceDir;
+        this.targetDir = targetDir;
+    }
+}
+
+
+static class AssetMove {
+    String sourceName; // like "img.png"
+    String newName; // the new version, like "img-3.png"
+    String hash;
+    long bytes;
+    boolean done; // already moved by an interrupted run
+
+    public AssetMove(String sourceName, String newName, String hash, long bytes) {
+        this.sourceName = sourceName;
+        this.newName = newName;
+        this.hash = hash;
+        this.bytes = bytes;
+    }
 }
 
 
@@ -709,6 +2138,50 @@ static class NavTree {
         }
         return result.toString();
     }
+
+    String toPrunedJson(Subfolder doc, /* out */ L<Integer> crumbs) {
+        /// The nav as seen from one doc: the top level, and the children of each of its ancestors,
+        /// with all the other folders collapsed to `null`. That's O(depth × fan-out) rather than
+        /// the whole site. Everything is at the same index as in the full tree, so `crumbs`, the
+        /// indices of the ancestors and of the doc itself, stay valid once the client loads that.
+        /// Only reads the tree, so many renders may call it at once
+        String[] spl = doc.cont.split("/");
+        L<NavTree> branch = L.of(this); // the root and the ancestors of the doc
+        for (int depth = 0; depth < spl.length; depth++) {
+            boolean isLeaf = depth == spl.length - 1;
+            String name = isLeaf ? doc.cont : spl[depth];
+            L<NavTree> level = branch.last().children;
+            int ind = level.findIndex(x -> x.name.equals(name) && (x.children.size() == 0) == isLeaf);
+            if (ind < 0) {
+                crumbs.clear(); // not in the nav, so it's shown from the top
+                break;
+            }
+            crumbs.add(ind);
+            if (!isLeaf) {
+                branch.add(level.get(ind));
+            }
+        }
+        var result = new StringBuilder(100);
+        appendPruned(branch, 0, result);
+        return result.toString();
+    }
+
+    private static void appendPruned(L<NavTree> branch, int depth, StringBuilder result) {
+        NavTree expanded = (depth + 1 < branch.size()) ? branch.get(depth + 1) : null;
+        L<NavTree> level = branch.get(depth).children;
+        for (int i = 0; i < level.size(); i++) {
+            NavTree child = level.get(i);
+            result.append((i > 0) ? ", [\"" : "[\"").append(child.name).append("\", ");
+            if (child == expanded) {
+                result.append('[');
+                appendPruned(branch, depth + 1, result);
+                result.append(']');
+            } else {
+                result.append((child.children.size() == 0) ? "[]" : "null");
+            }
+            result.append(']');
+        }
+    }
 }
 
 
@@ -728,51 +2201,476 @@ record Substitution(int startByte, int endByte, String text) {}
 
 
 //}}}
-//{{{ Templates
+//{{{ Catalog
+
+static class Catalog {
+    /// Everything a run needs to know about the blog dir, so that it doesn't have to walk it.
+    /// Persisted in `blogDir/_catalog.txt`, one tab-separated entry per line:
+    ///     core    style.css   style-3.css        (fixed core file => its current version)
+    ///     global  graph       graph-2.js         (extra global script => its current version)
+    ///     doc     a/b/c       2023-04-05  2023-04-06    (created and updated dates)
+    ///     asset   a/b/c       img.png     img-4.png     (local file => its current version)
+    ///     hash    a/b/c/img-4.png     9f86d0...     (content hash of a current version)
+    ///     flag    coreAliases true               (a setting that changes all the docs)
+    ///     uses    graph       a/b/c              (a doc includes an extra global script)
+    ///     nav     nav-12.json                    (the current external nav file)
+    ///     render  a/b/c       1a2b...@2023-04-06  3c4d...   (what the last render depended on)
+    Map<String, String> coreVersions = new HashMap();
+    Map<String, String> globalVersions = new HashMap();
+    Map<String, String> flags = new HashMap(); // the settings the docs were rendered with
+    String navFile; // the current version of the external nav, like `nav-12.json`
+    Map<Subfolder, DocDates> docs = new HashMap();
+    Map<Subfolder, Map<UnvName, String>> assets = new HashMap();
+    // Content hashes of the current versions, keyed like `a/b/c/img-4.png` or `style-3.css`.
+    // Concurrent because the async moves fill it in
+    Map<String, String> hashes = new ConcurrentHashMap();
+    // Reverse index of the extra global scripts: "graph" => the docs that include it.
+    // Renders update it concurrently, so it's only accessed through synchronized methods
+    private final Map<String, Set<Subfolder>> dependents = new HashMap();
+    private final Map<Subfolder, Set<String>> uses = new HashMap(); // the same, forwards
+    // Concurrent because the renders fill it in. See `RenderKey`
+    Map<Subfolder, RenderKey> renderKeys = new ConcurrentHashMap();
+    boolean scanned; // rebuilt from the blog dir and not saved yet
+
+    static class DocDates {
+        String created;
+        String updated;
+        DocDates(String created, String updated) {
+            this.created = created;
+            this.updated = updated;
+        }
+    }
 
-static final String templateHtmlStart = """
-<!DOCTYPE html>
-<html>
-<head>
-    <meta http-equiv="Content-Security-Policy"
-          content="default-src 'self'; script-src 'self'; base-uri 'self';" />
-    <link rel="icon" type="image/x-icon" href="/blog/favicon.ico"/>
-""";
+    static Catalog load(FileSys fs) {
+        /// Reads the catalog, or rebuilds it from disk if it's missing or a run died midway
+        String text = fs.readTextFile(blogDir, catalogFile);
+        if (text.isEmpty() || fs.listFiles(blogDir).any(x -> x.name.equals(catalogPendingFile))) {
+            return scan(fs);
+        }
+        return parse(text);
+    }
 
+    static Catalog read(FileSys fs) {
+        /// The catalog as the last finished run left it, for resuming from a `Journal`
+        String text = fs.readTextFile(blogDir, catalogFile);
+        return text.isEmpty() ? scan(fs) : parse(text);
+    }
 
-static final String templateBodyStart = """
-<body>
-<div class="_wrapper">
-<div class="_navbar" id="_theNavBar">
-    <div class="_menuTop">
-        <div class="_svgButton" title="Toggle theme">
-            <a id="_themeToggle" title="Toggle theme">
-                <svg id="_themeToggler" class="_swell" width="30" height="30" viewBox="0 0 100 100">
-                    <circle r="48" cx="50" cy="50" />
-                    <path d="M 35 20 h 30 c 0 30 -30 30 -30 60 h 30
-                             c 0 -30 -30 -30 -30 -60" />
-                </svg>
-            </a>
-        </div>
-        <div class="_svgButton">
-            <a href="http://sozonov.site" title="Home page">
-                <svg id="_homeIcon" class="_swell" width="30" height="30" viewBox="0 0 100 100">
-                    <circle r="48" cx="50" cy="50" />
-                    <path d="M 30 45 h 40 v 25 h -40 v -25 " />
-                    <path d="M 22 50 l 28 -25 l 28 25" />
-                </svg>
-            </a>
-        </div>
-    </div>
-    <div class="_menu" id="_theMenu"></div>
-</div>
+    static Catalog parse(String text) {
+        var result = new Catalog();
+        for (String line : text.split("\n")) {
+            String[] spl = line.split("\t", -1); // keeps the empty dates and keys at the end
+            switch (spl[0]) {
+                case "core" -> result.coreVersions.put(spl[1], spl[2]);
+                case "global" -> result.globalVersions.put(spl[1], spl[2]);
+                case "doc" -> result.docs.put(new Subfolder(spl[1]), new DocDates(spl[2], spl[3]));
+                case "asset" -> result.assets
+                        .computeIfAbsent(new Subfolder(spl[1]), x -> new HashMap())
+                        .put(new UnvName(spl[2]), spl[3]);
+                case "hash" -> result.hashes.put(spl[1], spl[2]);
+                case "flag" -> result.flags.put(spl[1], spl[2]);
+                case "uses" -> result.addUse(new Subfolder(spl[2]), spl[1]);
+                case "nav" -> result.navFile = spl[1];
+                case "render" -> result.renderKeys.put(new Subfolder(spl[1]),
+                                                       new RenderKey(spl[2], spl[3]));
+                default -> {} // comments and empty lines
+            }
+        }
+        return result;
+    }
 
-<div class="_divider" id="_divider">&lt;</div>
-<div class="_menuToggler _hidden" id="_menuToggler">
-    <div class="_svgButton" title="Open menu">
-        <a id="_toggleNavBar">
-            <svg class="_swell" width="30" height="30" viewBox="0 0 100 100">
-                <circle r="48" cx="50" cy="50"></circle>
+    static Catalog scan(FileSys fs) {
+        /// Builds the catalog by walking the blog dir and reading the date stamp of every doc
+        Log.info("rebuilding the catalog from " + blogDir.cont);
+        var result = new Catalog();
+        result.scanned = true;
+        var rootFiles = fs.listFiles(blogDir);
+        VersionIndex rootIndex = VersionIndex.of(rootFiles);
+        for (String fixed : fixedCoreFiles) {
+            String current = rootIndex.current(new UnvName(fixed));
+            if (current != null) {
+                result.coreVersions.put(fixed, current);
+            }
+        }
+        // The next nav must get a new name, because the versioned ones are cached as immutable
+        result.navFile = rootIndex.current(new UnvName(Blog.navFile));
+        for (var f : rootFiles) {
+            if (f.name.endsWith(".js") && !isCoreName(f.name)) {
+                String shortName = shaveOffExtension(new UnvName(f.name).cont);
+                String current = result.globalVersions.get(shortName);
+                if (current == null || getFileVersion(f.name) > getFileVersion(current)) {
+                    result.globalVersions.put(shortName, f.name);
+                }
+            }
+        }
+        // The modes the docs were rendered with, as far as they show in the docs
+        var modes = new HashMap<String, Set<String>>();
+        for (Subfolder subf : fs.listSubfoldersContaining(blogDir, "i.html")) {
+            Dir dir = new Dir(blogDir, subf);
+            L<FileInfo> files = fs.listFiles(dir);
+            var html = new HtmlBytes(fs.mapFile(dir, "i.html"));
+            HtmlScan scan = HtmlScan.of(html);
+            if (scan.stampStart > -1) {
+                result.docs.put(subf, new DocDates(parseCreatedDate(html, scan),
+                                                   parseUpdatedDate(html, scan)));
+            } else {
+                result.docs.put(subf, new DocDates("", ""));
+            }
+            result.assets.put(subf, readLocalFiles(files).versions);
+            modes.computeIfAbsent("gzip", k -> new HashSet())
+                 .add(String.valueOf(files.any(x -> x.name.equals("i.html" + gzExt))));
+            if (scan.headStart > -1) {
+                L<String> globalScripts = new L();
+                try {
+                    parseHead(scan, result.localFilesOf(subf), true, globalScripts);
+                } catch (RuntimeException e) {
+                    Log.warn("can't parse the head of " + subf.cont + ": " + e.getMessage());
+                }
+                result.setUses(subf, globalScripts);
+                observeModes(html, scan, modes);
+            }
+        }
+        for (var e : modes.entrySet()) {
+            // Docs in different modes are left from an interrupted switch. "mixed" matches no
+            // setting, so they all get rebuilt
+            Set<String> values = e.getValue();
+            result.flags.put(e.getKey(), (values.size() == 1) ? values.iterator().next() : "mixed");
+        }
+        return result;
+    }
+
+    private static void observeModes(HtmlBytes html, HtmlScan scan, Map<String, Set<String>> modes) {
+        /// The flags of the modes that change the <head>, as seen in the head of one doc
+        String coreAlias = appSuburl + coreAliasName("script.js");
+        boolean aliases = scan.scriptSrcs.any(x -> x.text.equals(coreAlias));
+        boolean navUrl = isInHead(html, scan, "\"navUrl\"");
+        boolean crumbs = isInHead(html, scan, "\"crumbs\"");
+        modes.computeIfAbsent("coreAliases", k -> new HashSet()).add(String.valueOf(aliases));
+        modes.computeIfAbsent("externalNav", k -> new HashSet()).add(String.valueOf(navUrl && !crumbs));
+        modes.computeIfAbsent("prunedNav", k -> new HashSet()).add(String.valueOf(crumbs));
+    }
+
+    private static boolean isInHead(HtmlBytes html, HtmlScan scan, String needle) {
+        int ind = HtmlScan.indexOf(html, needle, scan.headStart);
+        return ind > -1 && (scan.headEnd < 0 || ind < scan.headEnd);
+    }
+
+    void save(FileSys fs) {
+        /// Writes to a temp file first and renames it, so the catalog on disk is always whole
+        var wr = new StringBuilder();
+        wr.append("# The blog catalog, see Blog.Catalog\n");
+        for (var e : coreVersions.entrySet()) {
+            wr.append("core\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        for (var e : globalVersions.entrySet()) {
+            wr.append("global\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        for (var e : docs.entrySet()) {
+            wr.append("doc\t" + e.getKey().cont + "\t" + e.getValue().created
+                    + "\t" + e.getValue().updated + "\n");
+        }
+        for (var e : assets.entrySet()) {
+            for (var asset : e.getValue().entrySet()) {
+                wr.append("asset\t" + e.getKey().cont + "\t" + asset.getKey().cont
+                        + "\t" + asset.getValue() + "\n");
+            }
+        }
+        for (var e : hashes.entrySet()) {
+            wr.append("hash\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        for (var e : flags.entrySet()) {
+            wr.append("flag\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        if (navFile != null) {
+            wr.append("nav\t" + navFile + "\n");
+        }
+        for (var e : renderKeys.entrySet()) {
+            wr.append("render\t" + e.getKey().cont + "\t" + e.getValue().source()
+                    + "\t" + e.getValue().deps() + "\n");
+        }
+        synchronized (this) {
+            for (var e : dependents.entrySet()) {
+                for (Subfolder doc : e.getValue()) {
+                    wr.append("uses\t" + e.getKey() + "\t" + doc.cont + "\n");
+                }
+            }
+        }
+        fs.saveOverwriteFile(blogDir, catalogFile + ".tmp", wr.toString());
+        fs.moveFileWithRename(blogDir, catalogFile + ".tmp", blogDir, catalogFile);
+        scanned = false;
+    }
+
+    L<FileInfo> currentVersion(Map<String, String> versions, String key) {
+        /// The current version of a core file as a listing, for `makeNameBumpedVersion`
+        String current = versions.get(key);
+        return (current == null) ? new L() : L.of(new FileInfo(current));
+    }
+
+    String hashOf(FileSys fs, Subfolder subf, String fn) {
+        /// Hash of a file in the blog dir (`subf` is null for the root). Hashes missing from the
+        /// catalog, for example after a rebuild, are computed from disk and remembered
+        String key = assetKey(subf, fn);
+        String result = hashes.get(key);
+        if (result == null) {
+            Dir dir = (subf == null) ? blogDir : new Dir(blogDir, subf);
+            result = contentHash(fs.readBinaryFile(dir, fn));
+            hashes.put(key, result);
+        }
+        return result;
+    }
+
+    synchronized void setUses(Subfolder doc, L<String> globalScripts) {
+        /// Records which extra global scripts a doc includes, replacing what it included before
+        for (String old : uses.getOrDefault(doc, Set.of())) {
+            dependents.get(old).remove(doc);
+        }
+        uses.remove(doc);
+        for (String gs : globalScripts) {
+            if (indexOf(fixedCoreFiles, gs + ".js") < 0) { // old docs also link to `script.js`
+                addUse(doc, gs);
+            }
+        }
+    }
+
+    private synchronized void addUse(Subfolder doc, String globalScript) {
+        uses.computeIfAbsent(doc, x -> new HashSet()).add(globalScript);
+        dependents.computeIfAbsent(globalScript, x -> new HashSet()).add(doc);
+    }
+
+    synchronized L<String> usesOf(Subfolder doc) {
+        var result = new L<String>();
+        result.addAll(uses.getOrDefault(doc, Set.of()));
+        return result;
+    }
+
+    synchronized Set<Subfolder> dependentsOf(Set<String> globalScripts) {
+        Set<Subfolder> result = new HashSet();
+        for (String gs : globalScripts) {
+            result.addAll(dependents.getOrDefault(gs, Set.of()));
+        }
+        return result;
+    }
+
+    LocalFiles localFilesOf(Subfolder subf) {
+        var result = new LocalFiles();
+        result.versions.putAll(assets.getOrDefault(subf, Map.of()));
+        return result;
+    }
+}
+
+//}}}
+//{{{ Journal
+
+static final class Journal {
+    /// The write-ahead log of a run, in `blogDir/_journal.txt`. The plan is written whole before
+    /// anything is applied, then a line is appended as each doc is written or deleted:
+    ///     run     2023-04-06                        (the date of the run, for the date stamps)
+    ///     core    style.css   style-3.css  9f86d0...  2048    (a move, with its hash and size)
+    ///     global  graph.js    graph-2.js   ...                (likewise)
+    ///     unchanged   script.js                     (an ingest file identical to the current one)
+    ///     flag    coreAliases true
+    ///     dir     a.b.c   a/b/c                     (an ingest dir, followed by its moves)
+    ///     move    img.png img-4.png    9f86d0...  512
+    ///     create  a.b.c   a/b/c   content           (or update, with content/assets/core, and an
+    ///     delete  a/b/c                              empty source for core)
+    ///     discard a.b.c
+    ///     done    a/b/c   graph,katex               (a doc written or deleted, and its global scripts)
+    /// The file is deleted after the catalog is saved. If a run dies or runs out of its time budget,
+    /// the next one finishes exactly this plan (see `resumePlan`) before anything new. The appends
+    /// aren't synced, so a crash of the machine may lose the last few of them, and those docs are
+    /// written again, which is harmless
+    private final FileSys fs;
+    String todayDt;
+    L<String> plan = new L(); // the lines of the plan
+    Map<Subfolder, L<String>> done = new HashMap();
+
+    private Journal(FileSys fs) {
+        this.fs = fs;
+    }
+
+    static Journal begin(FileSys fs, Plan plan, String todayDt) {
+        var result = new Journal(fs);
+        result.todayDt = todayDt;
+        var wr = new StringBuilder();
+        wr.append("run\t" + todayDt + "\n");
+        for (AssetMove m : plan.core.coreBumps) {
+            wr.append("core\t" + m.sourceName + "\t" + m.newName + "\t" + m.hash + "\t" + m.bytes + "\n");
+        }
+        for (AssetMove m : plan.core.globalBumps) {
+            wr.append("global\t" + m.sourceName + "\t" + m.newName + "\t" + m.hash + "\t" + m.bytes + "\n");
+        }
+        for (String fn : plan.core.unchanged) {
+            wr.append("unchanged\t" + fn + "\n");
+        }
+        for (var e : plan.core.flags.entrySet()) {
+            wr.append("flag\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        Ingestion ing = plan.ing;
+        Map<Subfolder, CreateUpdate> byTarget = new HashMap();
+        for (CreateUpdate cu : ing.createDocs) {
+            byTarget.put(cu.targetDir, cu);
+        }
+        for (CreateUpdate cu : ing.updateDocs) {
+            byTarget.put(cu.targetDir, cu);
+        }
+        for (DirPlan dirPlan : ing.dirs) {
+            // The doc of a dir right after it, so that resuming finds its local files
+            wr.append("dir\t" + dirPlan.sourceDir.cont + "\t" + dirPlan.targetDir.cont + "\n");
+            for (AssetMove m : dirPlan.moves) {
+                wr.append("move\t" + m.sourceName + "\t" + m.newName + "\t" + m.hash + "\t" + m.bytes + "\n");
+            }
+            CreateUpdate cu = byTarget.get(dirPlan.targetDir);
+            if (cu != null && cu.sourceDir != null) {
+                boolean isCreate = ing.createDocs.any(x -> x == cu);
+                wr.append((isCreate ? "create\t" : "update\t") + cu.sourceDir.cont + "\t"
+                        + cu.targetDir.cont + "\t" + (cu.hasNewContent ? "content" : "assets") + "\n");
+            }
+        }
+        for (CreateUpdate cu : ing.updateDocs) {
+            if (cu.sourceDir == null) {
+                wr.append("update\t\t" + cu.targetDir.cont + "\tcore\n");
+            }
+        }
+        for (Subfolder toDel : ing.deleteDocs) {
+            wr.append("delete\t" + toDel.cont + "\n");
+        }
+        for (Subfolder toDiscard : ing.discardDirs) {
+            wr.append("discard\t" + toDiscard.cont + "\n");
+        }
+        fs.saveOverwriteFile(blogDir, journalFile + ".tmp", wr.toString());
+        fs.moveFileWithRename(blogDir, journalFile + ".tmp", blogDir, journalFile);
+        return result;
+    }
+
+    static Journal open(FileSys fs) {
+        /// The journal of an interrupted run, or null if the last run finished
+        String text = fs.readTextFile(blogDir, journalFile);
+        if (text.isEmpty()) {
+            return null;
+        }
+        var result = new Journal(fs);
+        for (String line : text.split("\n")) {
+            String[] spl = line.split("\t", -1);
+            switch (spl[0]) {
+                case "run" -> result.todayDt = spl[1];
+                case "done" -> result.done.put(new Subfolder(spl[1]), spl[2].isEmpty()
+                        ? new L() : L.of(spl[2].split(",")));
+                default -> result.plan.add(line);
+            }
+        }
+        return result;
+    }
+
+    synchronized void done(Subfolder doc, L<String> globalScripts) {
+        done.put(doc, globalScripts);
+        fs.appendToFile(blogDir, journalFile,
+                        "done\t" + doc.cont + "\t" + String.join(",", globalScripts) + "\n");
+    }
+
+    void end() {
+        fs.deleteIfExists(blogDir, journalFile);
+    }
+}
+
+//}}}
+//{{{ Templates
+
+static final class Template {
+    /// A page template compiled into UTF-8 segments. A page is written as
+    /// `htmlStart`, the variable <head> part, `bodyStart`, the content, `end`.
+    /// The buffers are read-only and shared, so every page write must use duplicates of them
+    final ByteBuffer htmlStart;
+    final ByteBuffer bodyStart; // ends with `contentStartMarker`
+    final ByteBuffer end; // starts with `contentEndMarker`
+    final String version; // hash of the whole template
+
+    static final String headSlot = "<!-- $head -->";
+    static final String contentSlot = "<!-- $content -->";
+
+    static final Template standard = new Template(templateHtmlStart,
+            "\n</head>\n" + templateBodyStart, contentEndMarker + templateEnd);
+
+    Template(String htmlStart, String bodyStart, String end) {
+        if (!bodyStart.endsWith(contentStartMarker) || !end.startsWith(contentEndMarker)) {
+            throw new RuntimeException("The template must have the content markers around the content");
+        }
+        this.htmlStart = encodeReadOnly(htmlStart);
+        this.bodyStart = encodeReadOnly(bodyStart);
+        this.end = encodeReadOnly(end);
+        this.version = contentHash((htmlStart + headSlot + bodyStart + contentSlot + end)
+                .getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+    }
+
+    static Template load(FileSys fs, String path) {
+        /// Loads a template file: a whole HTML page with the line `<!-- $head -->` at the end of
+        /// the <head>, and `<!-- $content -->` right after `<div id="_content">`
+        Path thePath = Paths.get(path);
+        String text = fs.readTextFile(Dir.ofString(thePath.getParent().toString()),
+                                      thePath.getFileName().toString());
+        int indHead = text.indexOf(headSlot);
+        int indContent = text.indexOf(contentSlot);
+        if (indHead < 0 || indContent < indHead) {
+            throw new RuntimeException("The template " + path + " must have the slots "
+                    + headSlot + " and then " + contentSlot);
+        }
+        int afterContent = indContent + contentSlot.length();
+        if (text.startsWith("\n", afterContent)) {
+            afterContent++;
+        }
+        return new Template(text.substring(0, indHead),
+                text.substring(indHead + headSlot.length(), indContent),
+                contentEndMarker + text.substring(afterContent));
+    }
+
+    private static ByteBuffer encodeReadOnly(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
+
+
+static final String templateHtmlStart = """
+<!DOCTYPE html>
+<html>
+<head>
+    <meta http-equiv="Content-Security-Policy"
+          content="default-src 'self'; script-src 'self'; base-uri 'self';" />
+    <link rel="icon" type="image/x-icon" href="/blog/favicon.ico"/>
+""";
+
+
+static final String templateBodyStart = """
+<body>
+<div class="_wrapper">
+<div class="_navbar" id="_theNavBar">
+    <div class="_menuTop">
+        <div class="_svgButton" title="Toggle theme">
+            <a id="_themeToggle" title="Toggle theme">
+                <svg id="_themeToggler" class="_swell" width="30" height="30" viewBox="0 0 100 100">
+                    <circle r="48" cx="50" cy="50" />
+                    <path d="M 35 20 h 30 c 0 30 -30 30 -30 60 h 30
+                             c 0 -30 -30 -30 -30 -60" />
+                </svg>
+            </a>
+        </div>
+        <div class="_svgButton">
+            <a href="http://sozonov.site" title="Home page">
+                <svg id="_homeIcon" class="_swell" width="30" height="30" viewBox="0 0 100 100">
+                    <circle r="48" cx="50" cy="50" />
+                    <path d="M 30 45 h 40 v 25 h -40 v -25 " />
+                    <path d="M 22 50 l 28 -25 l 28 25" />
+                </svg>
+            </a>
+        </div>
+    </div>
+    <div class="_menu" id="_theMenu"></div>
+</div>
+
+<div class="_divider" id="_divider">&lt;</div>
+<div class="_menuToggler _hidden" id="_menuToggler">
+    <div class="_svgButton" title="Open menu">
+        <a id="_toggleNavBar">
+            <svg class="_swell" width="30" height="30" viewBox="0 0 100 100">
+                <circle r="48" cx="50" cy="50"></circle>
                 <path d="M 30 35 h 40" stroke-width="6"></path>
                 <path d="M 30 50 h 40" stroke-width="6"></path>
                 <path d="M 30 65 h 40" stroke-width="6"></path>
@@ -1243,6 +3141,33 @@ static String shaveOffExtension(String fN) {
 }
 
 
+static String contentHash(byte[] bytes) {
+    return contentHash(ByteBuffer.wrap(bytes));
+}
+
+
+static String contentHash(ByteBuffer bytes) {
+    try {
+        var digest = MessageDigest.getInstance("SHA-256");
+        digest.update(bytes.duplicate());
+        return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+    }
+}
+
+
+static <T> T await(CompletableFuture<T> fut) {
+    /// Blocks on an async result, rethrowing its failure unwrapped
+    try {
+        return fut.join();
+    } catch (CompletionException e) {
+        throw (e.getCause() instanceof RuntimeException re)
+                ? re : new RuntimeException(e.getCause());
+    }
+}
+
+
 static Optional<Integer> parseInt(String s) {
     try {
         return Optional.of(Integer.parseInt(s));
@@ -1335,6 +3260,7 @@ public static class Subfolder {
     }
 }
 
+
 static class UnvName {
     /// An unversioned file name, so if the whole name is "asdf-11.jpg", this will be "asdf.jpg"
     String cont;
@@ -1349,9 +3275,13 @@ static class UnvName {
     }
 
     String toVersion(int n) {
-        String withoutExt = shaveOffExtension(this.cont);
-        return withoutExt
-                + "-" + Integer.toString(n) + this.cont.substring(withoutExt.length() + 1);
+        /// "nav.json" -> "nav-3.json"
+        int indLastDot = this.cont.lastIndexOf(".");
+        if (indLastDot < 0) {
+            return this.cont + "-" + Integer.toString(n);
+        }
+        return this.cont.substring(0, indLastDot) + "-" + Integer.toString(n)
+                + this.cont.substring(indLastDot);
     }
 
     @Override
@@ -1365,16 +3295,81 @@ static class UnvName {
     }
 }
 
+
+static final class VersionIndex {
+    /// The latest version of every file in a dir, built in one pass over its listing and updated
+    /// in place as new versions are moved in, so that lookups and bumps are O(1) instead of a
+    /// scan of the listing per file. Synchronized because the moves of a dir finish concurrently
+    private final Map<UnvName, String> latest = new HashMap();
+    private final Map<UnvName, Integer> maxVersions = new HashMap();
+    private final L<String> superseded = new L();
+
+    static VersionIndex of(L<FileInfo> files) {
+        var result = new VersionIndex();
+        for (var f : files) {
+            result.add(f.name);
+        }
+        return result;
+    }
+
+    synchronized void add(String fn) {
+        UnvName unvName = new UnvName(fn);
+        int version = getFileVersion(fn);
+        Integer max = maxVersions.get(unvName);
+        if (max == null || version > max) {
+            if (max != null) {
+                superseded.add(latest.get(unvName));
+            }
+            latest.put(unvName, fn);
+            maxVersions.put(unvName, version);
+        } else {
+            superseded.add(fn);
+        }
+    }
+
+    synchronized String current(UnvName unvName) {
+        /// The full name of the latest version, or null if there's none
+        return latest.get(unvName);
+    }
+
+    synchronized String bump(UnvName unvName) {
+        /// Makes the name of the next version, and records it as the latest
+        Integer max = maxVersions.get(unvName);
+        String result = (max == null) ? unvName.cont : unvName.toVersion(Math.max(max, 1) + 1);
+        add(result);
+        return result;
+    }
+
+    synchronized LocalFiles toLocalFiles() {
+        /// The latest versions, and all the older ones (with their `.gz` siblings) to delete
+        var result = new LocalFiles();
+        result.versions.putAll(latest);
+        for (String stale : superseded) {
+            result.filesToDelete.add(stale);
+            if (isCompressible(stale)) {
+                result.filesToDelete.add(stale + gzExt);
+            }
+        }
+        return result;
+    }
+}
+
 //}}}
 //}}}
 //{{{ Filesys
 
 static class FileInfo {
     String name;
+    long size = -1; // in bytes, or -1 if the listing didn't say
 
     public FileInfo(String name)  {
         this.name = name;
     }
+
+    public FileInfo(String name, long size)  {
+        this.name = name;
+        this.size = size;
+    }
 }
 
 interface FileSys {
@@ -1383,13 +3378,29 @@ interface FileSys {
     L<Subfolder> listSubfolders(Dir dir); // immediate subfolders of a directory
     L<Subfolder> listSubfoldersContaining(Dir dir, String fN); // recursively list all nested dirs
     String readTextFile(Dir dir, String fN);
+    byte[] readBinaryFile(Dir dir, String fN); // empty if there is no such file
+    ByteBuffer mapFile(Dir dir, String fN); // read-only, may be off-heap. Empty if there is none
     boolean saveOverwriteFile(Dir dir, String fN, String cont);
+    boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts); // a gathering write
+    boolean appendToFile(Dir dir, String fN, String cont); // creates the file if it's missing
     boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName);
     boolean deleteIfExists(Dir dir, String fN);
     boolean deleteDirIfExists(Dir dir);
 }
 
 
+interface AsyncFileSys {
+    /// Same operations as `FileSys`, but they don't block, so many may be in flight at once
+    CompletableFuture<L<FileInfo>> listFiles(Dir dir);
+    CompletableFuture<String> readTextFile(Dir dir, String fN);
+    CompletableFuture<byte[]> readBinaryFile(Dir dir, String fN);
+    CompletableFuture<Boolean> saveOverwriteFile(Dir dir, String fN, String cont);
+    CompletableFuture<Boolean> moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName);
+    CompletableFuture<Boolean> deleteIfExists(Dir dir, String fN);
+    CompletableFuture<Boolean> deleteDirIfExists(Dir dir);
+}
+
+
 // Implementation
 //~    try (Stream<Path> walk = Files.walk(Paths.get(blogDir))) {
 //~        walk.filter(Files::isDirectory)
@@ -1414,15 +3425,21 @@ static class BlogFileSys implements FileSys {
 
     @Override
     public L<FileInfo> listFiles(Dir dir) {
-        var result = new L();
-        var files0 = new File(dir.cont).listFiles();
-        if (files0 == null) {
-            return result;
+        /// One stat per entry, which tells both whether it's a file and its size
+        L<FileInfo> result = new L();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(dir.cont))) {
+            for (Path entry : entries) {
+                try {
+                    var attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (!attrs.isDirectory()) {
+                        result.add(new FileInfo(entry.getFileName().toString(), attrs.size()));
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted since the listing
+                }
+            }
+        } catch (IOException e) { // a missing dir, for example
         }
-        var files = Stream.of(files0)
-                .filter(file -> !file.isDirectory())
-                .map(x -> new FileInfo(x.getName())).toList();
-        result.addAll(files);
         return result;
     }
 
@@ -1437,12 +3454,11 @@ static class BlogFileSys implements FileSys {
             var allPaths = paths.toList();
             for (Path pt : allPaths) {
                 if (Files.isDirectory(pt) && pt.toString().length() > prefixWithSl.length()) {
-                    print(pt.toString());
                     result.add(new Subfolder(pt.toString().substring(prefixWithSl.length())));
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("can't list the subfolders of " + dir.cont, e);
         }
         return result;
     }
@@ -1462,20 +3478,48 @@ static class BlogFileSys implements FileSys {
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("can't walk " + dir.cont, e);
         }
         return result;
     }
 
     @Override
     public String readTextFile(Dir dir, String fn) {
-        Path thePath = Paths.get(dir.cont, fn);
-        File theFile = new File(thePath.toString());
-        if (!theFile.exists()) {
+        try {
+            return Files.readString(Paths.get(dir.cont, fn));
+        } catch (NoSuchFileException e) {
             return "";
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage());
         }
+    }
+
+    @Override
+    public byte[] readBinaryFile(Dir dir, String fn) {
         try {
-            return Files.readString(thePath);
+            return Files.readAllBytes(Paths.get(dir.cont, fn));
+        } catch (NoSuchFileException e) {
+            return new byte[0];
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Override
+    public ByteBuffer mapFile(Dir dir, String fn) {
+        /// Big files are mapped, so they take no heap however big they are. Small ones are read,
+        /// because a mapping costs more syscalls than the read, and the mappings only go away
+        /// on GC, so mapping every small doc of a big run could hit the limit on their count
+        try (FileChannel ch = FileChannel.open(Paths.get(dir.cont, fn), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size >= mapThreshold) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer result = ByteBuffer.allocate((int)size);
+            while (result.hasRemaining() && ch.read(result) > -1) {}
+            return result.flip();
+        } catch (NoSuchFileException e) {
+            return ByteBuffer.allocate(0);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
         }
@@ -1483,20 +3527,58 @@ static class BlogFileSys implements FileSys {
 
     @Override
     public boolean saveOverwriteFile(Dir dir, String fn, String cont) {
-        Path targetOsPath = tryCreateMissingDir(dir);
-        if (!Files.isDirectory(targetOsPath)) {
+        /// Optimistically writes first and only creates the dir if it was missing, which saves
+        /// the stat calls in the common case
+        Path targetPath = Paths.get(dir.cont, fn);
+        byte[] bytes = cont.getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.write(targetPath, bytes);
+            return true;
+        } catch (NoSuchFileException e) {
+            if (tryCreateMissingDir(dir) == null) {
+                return false;
+            }
+        } catch (IOException e) { // the target is a directory, for example
             return false;
         }
+        try {
+            Files.write(targetPath, bytes);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        return true;
+    }
+
+
+    @Override
+    public boolean appendToFile(Dir dir, String fn, String cont) {
+        try {
+            Files.write(Paths.get(dir.cont, fn), cont.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fn, ByteBuffer[] parts) {
+        /// Writes all the parts with as few syscalls as possible, without joining them first.
+        /// A missing dir fails when opening, before any of the parts are consumed
         Path targetPath = Paths.get(dir.cont, fn);
-        File targetFile = new File(targetPath.toString());
-        if (targetFile.exists()) {
-            if (targetFile.isDirectory()) {
+        try {
+            writeGathering(targetPath, parts);
+            return true;
+        } catch (NoSuchFileException e) {
+            if (tryCreateMissingDir(dir) == null) {
                 return false;
             }
-            targetFile.delete();
+        } catch (IOException e) {
+            return false;
         }
         try {
-            Files.write(targetPath, cont.getBytes(StandardCharsets.UTF_8));
+            writeGathering(targetPath, parts);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
         }
@@ -1504,16 +3586,32 @@ static class BlogFileSys implements FileSys {
     }
 
 
+    private static void writeGathering(Path targetPath, ByteBuffer[] parts) throws IOException {
+        /// Into a temp file that then replaces the target, because the parts may be slices of
+        /// the target itself mapped into memory, which truncating it in place would destroy.
+        /// Readers of the target also never see it half-written
+        long remaining = 0;
+        for (ByteBuffer part : parts) {
+            remaining += part.remaining();
+        }
+        Path tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (remaining > 0) {
+                remaining -= ch.write(parts);
+            }
+        }
+        tryMove(tempPath, targetPath);
+    }
+
+
     private Path tryCreateMissingDir(Dir dir)  {
         Path targetOsPath = Paths.get(dir.cont);
-        File targetOsDir = new File(targetOsPath.toString());
-        if (!targetOsDir.exists()) {
-            try  {
-                Files.createDirectories(targetOsPath);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+        try  {
+            Files.createDirectories(targetOsPath);
+        } catch (IOException e) {
+            Log.error("can't create " + dir.cont, e);
+            return null;
         }
         return targetOsPath;
     }
@@ -1521,45 +3619,47 @@ static class BlogFileSys implements FileSys {
 
     @Override
     public boolean moveFileWithRename(Dir dir, String fn, Dir targetDir, String newName) {
-        /// Source file and target dir must exist
+        /// The target dir is created if missing. An existing target file is replaced atomically
         Path sourcePath = Paths.get(dir.cont, fn);
-        File sourceFile = new File(sourcePath.toString());
-        if (!sourceFile.exists() || Files.isDirectory(sourcePath)) {
-            return false;
-        }
-        Path targetOsPath = Paths.get(targetDir.cont);
-        File targetOsDir = new File(targetOsPath.toString());
-        tryCreateMissingDir(targetDir);
-        if (!targetOsDir.exists() || !Files.isDirectory(targetOsPath)) {
-            print("p2");
-            return false;
-        }
         Path targetPath = Paths.get(targetDir.cont, newName);
-        File targetFile = new File(targetPath.toString());
-        if (targetFile.exists()) {
-            if (targetFile.isDirectory()) {
-                print("p3");
+        try {
+            tryMove(sourcePath, targetPath);
+            return true;
+        } catch (NoSuchFileException e) {
+            if (!Files.isRegularFile(sourcePath) || tryCreateMissingDir(targetDir) == null) {
                 return false;
             }
-            targetFile.delete();
+        } catch (DirectoryNotEmptyException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
         }
         try {
-            Files.move(sourcePath, targetPath);
+            tryMove(sourcePath, targetPath);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
         }
         return true;
     }
 
+
+    private static void tryMove(Path sourcePath, Path targetPath) throws IOException {
+        try {
+            Files.move(sourcePath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) { // source and target on different devices
+            Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     @Override
     public boolean deleteIfExists(Dir dir, String fn) {
-        Path thePath = Paths.get(dir.cont, fn);
-        File theFile = new File(thePath.toString());
-        if (!theFile.exists() || Files.isDirectory(thePath)) {
+        try {
+            return Files.deleteIfExists(Paths.get(dir.cont, fn));
+        } catch (DirectoryNotEmptyException e) {
             return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
         }
-        theFile.delete();
-        return true;
     }
 
     @Override
@@ -1582,12 +3682,867 @@ static class BlogFileSys implements FileSys {
     }
 }
 
-//}}}
-//{{{ Main
 
-public static void main(String[] args) {
-    Blog blog = new Blog(new BlogFileSys());
-    blog.run();
+static class PooledAsyncFileSys implements AsyncFileSys {
+    /// Runs the operations of a blocking file system on a pool of threads, one thread per
+    /// operation in flight. With a single thread, every operation simply runs in the caller
+    private final FileSys fs;
+    private final Executor pool;
+
+    public PooledAsyncFileSys(FileSys fs, int threads) {
+        this.fs = fs;
+        this.pool = (threads <= 1)
+                ? Runnable::run
+                : Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, "blog-io");
+                    t.setDaemon(true);
+                    return t;
+                  });
+    }
+
+    @Override
+    public CompletableFuture<L<FileInfo>> listFiles(Dir dir) {
+        return CompletableFuture.supplyAsync(() -> fs.listFiles(dir), pool);
+    }
+
+    @Override
+    public CompletableFuture<String> readTextFile(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.readTextFile(dir, fN), pool);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryFile(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.readBinaryFile(dir, fN), pool);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveOverwriteFile(Dir dir, String fN, String cont) {
+        return CompletableFuture.supplyAsync(() -> fs.saveOverwriteFile(dir, fN, cont), pool);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> moveFileWithRename(Dir dir, String fN, Dir targetDir,
+                                                         String newName) {
+        return CompletableFuture.supplyAsync(
+                () -> fs.moveFileWithRename(dir, fN, targetDir, newName), pool);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfExists(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.deleteIfExists(dir, fN), pool);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteDirIfExists(Dir dir) {
+        return CompletableFuture.supplyAsync(() -> fs.deleteDirIfExists(dir), pool);
+    }
+}
+
+
+static class MeteredFileSys implements FileSys {
+    /// Counts every file op with its latency, and the bytes read and written. Also emits a
+    /// `FileOpEvent` for each op when a JFR recording is on
+    private final FileSys fs;
+    private final Metrics metrics;
+
+    MeteredFileSys(FileSys fs, Metrics metrics) {
+        this.fs = fs;
+        this.metrics = metrics;
+    }
+
+    private <T> T timed(String op, Dir dir, String fN, long bytesWritten, Supplier<T> action) {
+        var event = new FileOpEvent();
+        event.begin();
+        long startNs = System.nanoTime();
+        T result = action.get();
+        String label = Metrics.label("op", op);
+        metrics.observe("blog_fs_op_seconds", label, (System.nanoTime() - startNs) / 1e9);
+        metrics.count("blog_fs_ops_total", label, 1);
+        long bytesRead = (result instanceof byte[] bytes) ? bytes.length
+                       : (result instanceof String text) ? text.length() // close enough for UTF-8
+                       : 0;
+        if (bytesRead > 0) {
+            metrics.count("blog_fs_read_bytes_total", "", bytesRead);
+        }
+        if (bytesWritten > 0) {
+            metrics.count("blog_fs_written_bytes_total", "", bytesWritten);
+        }
+        event.end();
+        if (event.shouldCommit()) { // the path is built only when it's recorded
+            event.op = op;
+            event.path = (fN == null) ? dir.cont : dir.cont + "/" + fN;
+            event.bytes = bytesRead + bytesWritten;
+            event.commit();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean dirExists(Dir dir) {
+        return timed("exists", dir, null, 0, () -> fs.dirExists(dir));
+    }
+
+    @Override
+    public L<FileInfo> listFiles(Dir dir) {
+        return timed("list", dir, null, 0, () -> fs.listFiles(dir));
+    }
+
+    @Override
+    public L<Subfolder> listSubfolders(Dir dir) {
+        return timed("list", dir, null, 0, () -> fs.listSubfolders(dir));
+    }
+
+    @Override
+    public L<Subfolder> listSubfoldersContaining(Dir dir, String fN) {
+        return timed("walk", dir, null, 0, () -> fs.listSubfoldersContaining(dir, fN));
+    }
+
+    @Override
+    public String readTextFile(Dir dir, String fN) {
+        return timed("read", dir, fN, 0, () -> fs.readTextFile(dir, fN));
+    }
+
+    @Override
+    public byte[] readBinaryFile(Dir dir, String fN) {
+        return timed("read", dir, fN, 0, () -> fs.readBinaryFile(dir, fN));
+    }
+
+    @Override
+    public ByteBuffer mapFile(Dir dir, String fN) {
+        return timed("map", dir, fN, 0, () -> fs.mapFile(dir, fN));
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, String cont) {
+        return timed("write", dir, fN, cont.length(), () -> fs.saveOverwriteFile(dir, fN, cont));
+    }
+
+    @Override
+    public boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+        long bytes = 0;
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+        }
+        return timed("write", dir, fN, bytes, () -> fs.saveOverwriteFile(dir, fN, parts));
+    }
+
+    @Override
+    public boolean appendToFile(Dir dir, String fN, String cont) {
+        return timed("append", dir, fN, cont.length(), () -> fs.appendToFile(dir, fN, cont));
+    }
+
+    @Override
+    public boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName) {
+        return timed("move", dir, fN, 0, () -> fs.moveFileWithRename(dir, fN, targetDir, newName));
+    }
+
+    @Override
+    public boolean deleteIfExists(Dir dir, String fN) {
+        return timed("delete", dir, fN, 0, () -> fs.deleteIfExists(dir, fN));
+    }
+
+    @Override
+    public boolean deleteDirIfExists(Dir dir) {
+        return timed("delete_dir", dir, null, 0, () -> fs.deleteDirIfExists(dir));
+    }
+}
+
+//}}}
+//{{{ Metrics
+
+static final class Metrics {
+    /// Counters, gauges and histograms in the Prometheus text format. A series is keyed by its
+    /// name and labels, like `blog_fs_ops_total{op="move"}`. Safe to update from any thread
+    static final double[] buckets = { 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10 };
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap();
+    private final Map<String, Double> gauges = new ConcurrentHashMap();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap();
+
+    static final class Histogram {
+        final LongAdder[] counts = new LongAdder[buckets.length + 1]; // the last one is +Inf
+        final DoubleAdder sum = new DoubleAdder();
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+    }
+
+    static String label(String name, String value) {
+        return name + "=\"" + value + "\"";
+    }
+
+    void count(String name, String labels, long n) {
+        counters.computeIfAbsent(series(name, labels), k -> new LongAdder()).add(n);
+    }
+
+    void set(String name, String labels, double value) {
+        gauges.put(series(name, labels), value);
+    }
+
+    void observe(String name, String labels, double value) {
+        Histogram h = histograms.computeIfAbsent(series(name, labels), k -> new Histogram());
+        int i = 0;
+        while (i < buckets.length && value > buckets[i]) {
+            i++;
+        }
+        h.counts[i].increment();
+        h.sum.add(value);
+    }
+
+    long counter(String name, String labels) {
+        LongAdder result = counters.get(series(name, labels));
+        return (result == null) ? 0 : result.sum();
+    }
+
+    String toPrometheus() {
+        var result = new StringBuilder();
+        String lastName = "";
+        for (var e : new TreeMap<>(counters).entrySet()) {
+            lastName = typeLine(e.getKey(), "counter", lastName, result);
+            result.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (var e : new TreeMap<>(gauges).entrySet()) {
+            lastName = typeLine(e.getKey(), "gauge", lastName, result);
+            result.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (var e : new TreeMap<>(histograms).entrySet()) {
+            lastName = typeLine(e.getKey(), "histogram", lastName, result);
+            String name = nameOf(e.getKey());
+            String labels = e.getKey().substring(name.length());
+            String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            Histogram h = e.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < h.counts.length; i++) {
+                cumulative += h.counts[i].sum();
+                String le = (i < buckets.length) ? Double.toString(buckets[i]) : "+Inf";
+                result.append(name).append("_bucket").append(labelPrefix)
+                      .append(label("le", le)).append("} ").append(cumulative).append('\n');
+            }
+            result.append(name).append("_sum").append(labels).append(' ').append(h.sum.sum()).append('\n');
+            result.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static String typeLine(String series, String type, String lastName, StringBuilder result) {
+        String name = nameOf(series);
+        if (!name.equals(lastName)) {
+            result.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        return name;
+    }
+
+    private static String series(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    private static String nameOf(String series) {
+        int indBrace = series.indexOf('{');
+        return (indBrace < 0) ? series : series.substring(0, indBrace);
+    }
+}
+
+//}}}
+//{{{ Log
+
+static final class Log {
+    /// Leveled logging. The lines go into a ring buffer which a background thread writes out,
+    /// so a run never waits on the console. If the buffer fills up, the oldest lines are dropped
+    /// and counted. Debug is off by default, and `debug(() -> ...)` doesn't even build the line
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    static final int capacity = 8192;
+    private static final String[] ring = new String[capacity];
+    private static long head = 0; // the count of lines ever appended
+    private static long tail = 0; // the count of lines written out or dropped
+    private static long dropped = 0;
+    private static boolean writing = false; // a batch is out of the ring but not written yet
+    private static Thread writer;
+    static volatile Level level = parseLevel(System.getenv("BLOG_LOG_LEVEL")); // after the ring
+
+    static Level parseLevel(String s) {
+        /// A typo in the env var shouldn't keep the app from starting, so it falls back to INFO
+        if (s == null || s.isBlank()) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            append(Level.WARN, "unknown BLOG_LOG_LEVEL=" + s + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    static void debug(Supplier<String> line) {
+        if (level == Level.DEBUG) {
+            append(Level.DEBUG, line.get());
+        }
+    }
+
+    static void info(String line) {
+        if (level.compareTo(Level.INFO) <= 0) {
+            append(Level.INFO, line);
+        }
+    }
+
+    static void warn(String line) {
+        if (level.compareTo(Level.WARN) <= 0) {
+            append(Level.WARN, line);
+        }
+    }
+
+    static void error(String line, Throwable e) {
+        if (level == Level.OFF) {
+            return;
+        }
+        var trace = new java.io.StringWriter();
+        e.printStackTrace(new java.io.PrintWriter(trace));
+        append(Level.ERROR, line + "\n" + trace);
+    }
+
+    private static synchronized void append(Level lvl, String line) {
+        if (head - tail == capacity) {
+            tail++;
+            dropped++;
+        }
+        ring[(int)(head % capacity)] = Instant.now() + " " + lvl + " " + line;
+        head++;
+        if (writer == null) {
+            writer = new Thread(Log::writeLoop, "blog-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        Log.class.notifyAll();
+    }
+
+    private static void writeLoop() {
+        var batch = new StringBuilder();
+        while (true) {
+            synchronized (Log.class) {
+                writing = false;
+                Log.class.notifyAll(); // for `flush`
+                while (tail == head) {
+                    try {
+                        Log.class.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch.setLength(0);
+                for (; tail < head; tail++) {
+                    int ind = (int)(tail % capacity);
+                    batch.append(ring[ind]).append('\n');
+                    ring[ind] = null;
+                }
+                writing = true;
+            }
+            System.out.print(batch);
+            System.out.flush();
+        }
+    }
+
+    static synchronized void flush() {
+        /// Waits until everything logged so far is written, e.g. before the app exits
+        while (tail < head || writing) {
+            try {
+                Log.class.wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    static synchronized long dropped() {
+        return dropped;
+    }
+}
+
+//}}}
+//{{{ Events
+
+// JFR events, so that a recording of a live daemon or cron run shows where the time goes:
+//     java -XX:StartFlightRecording:filename=blog.jfr src/Blog.java
+//     jfr print --events 'tech.sozonov.blog.*' blog.jfr
+// They cost next to nothing without a recording. No stack traces, since the op tells enough
+
+@Name("tech.sozonov.blog.Phase")
+@Label("Blog Phase")
+@Category("Blog")
+@Description("A phase of an ingestion run")
+@StackTrace(false)
+static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+}
+
+
+@Name("tech.sozonov.blog.Render")
+@Label("Blog Render")
+@Category("Blog")
+@Description("Rendering and writing one doc")
+@StackTrace(false)
+static class RenderEvent extends Event {
+    @Label("Target Dir")
+    String targetDir;
+
+    @Label("Cause")
+    String cause;
+
+    @Label("Source Size")
+    @DataAmount
+    long sourceBytes;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+}
+
+
+@Name("tech.sozonov.blog.FileOp")
+@Label("Blog File Op")
+@Category("Blog")
+@Description("One operation on the file system")
+@StackTrace(false)
+static class FileOpEvent extends Event {
+    @Label("Op")
+    String op;
+
+    @Label("Path")
+    String path;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+}
+
+//}}}
+//{{{ Daemon
+
+static class Daemon {
+    /// Keeps a Blog with its catalog and nav warm, and runs it whenever the ingest dir has been
+    /// quiet for `quietMs` after a change. A shutdown lets the current run finish first
+    private final Blog blog;
+    private final Path ingestPath;
+    private final WatchService watcher;
+    private final QuietPeriod quiet;
+    private Thread serving;
+
+    Daemon(Blog blog) throws IOException {
+        this(blog, Paths.get(ingestDir.cont));
+    }
+
+    Daemon(Blog blog, Path ingestPath) throws IOException {
+        this.blog = blog;
+        this.ingestPath = ingestPath;
+        Files.createDirectories(ingestPath);
+        this.watcher = ingestPath.getFileSystem().newWatchService();
+        this.quiet = new QuietPeriod(blog.settings.quietMs);
+    }
+
+    void serve() throws IOException {
+        serving = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        registerAll(ingestPath);
+        try {
+            blog.run(); // for whatever was uploaded while we weren't watching
+            dropOwnEvents();
+            while (!quiet.isStopped()) {
+                long waitMs = quiet.waitMs(nowMs());
+                WatchKey key = (waitMs < 0) ? watcher.take()
+                                            : watcher.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    drain(key);
+                }
+                if (quiet.shouldRun(nowMs())) {
+                    Log.info("ingest dir is quiet, running");
+                    quiet.ran();
+                    blog.run();
+                    dropOwnEvents();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed by `stop`
+        }
+        Log.info("the daemon is shutting down");
+    }
+
+    void stop() {
+        /// Wakes up the loop unless it's in the middle of a run, which is then finished first
+        quiet.stop();
+        try {
+            watcher.close();
+            if (serving != null && serving != Thread.currentThread()) {
+                serving.join();
+            }
+        } catch (Exception e) {
+            Log.error("can't stop the daemon cleanly", e);
+        }
+    }
+
+    private void dropOwnEvents() throws IOException {
+        /// The moves and deletes of a run come back as events once it's over. They aren't
+        /// uploads, so they don't start another, empty run, but whatever was uploaded meanwhile does
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            drain(key);
+        }
+    }
+
+    private void drain(WatchKey key) throws IOException {
+        /// Consumes the events of a key, and starts watching any newly created dirs
+        Path dir = (Path)key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Path path = (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    ? null : dir.resolve((Path)event.context());
+            boolean exists = path != null && Files.exists(path);
+            quiet.event(QuietPeriod.isUpload(event.kind(), exists), nowMs());
+            if (exists && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(path)) {
+                registerAll(path);
+            }
+        }
+        key.reset();
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void registerAll(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path pt : paths.filter(Files::isDirectory).toList()) {
+                pt.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+}
+
+
+static final class QuietPeriod {
+    /// When the daemon runs, apart from its watch service: after an upload, once no other upload
+    /// has come for `quietMs`. The times are in ms of any monotonic clock
+    private final long quietMs;
+    private long lastUploadMs = -1; // of the latest upload not yet ingested, -1 if none
+    private volatile boolean stopped = false;
+
+    QuietPeriod(long quietMs) {
+        this.quietMs = quietMs;
+    }
+
+    static boolean isUpload(WatchEvent.Kind<?> kind, boolean exists) {
+        /// A run only ever moves files out of the ingest dir and deletes them, so a file that's
+        /// created or changed and is still there is an upload. Lost events may have been uploads
+        return kind == StandardWatchEventKinds.OVERFLOW
+                || (kind != StandardWatchEventKinds.ENTRY_DELETE && exists);
+    }
+
+    synchronized void event(boolean isUpload, long nowMs) {
+        if (isUpload) {
+            lastUploadMs = nowMs;
+        }
+    }
+
+    synchronized long waitMs(long nowMs) {
+        /// How long to wait for the next event, or -1 for as long as it takes
+        return (lastUploadMs < 0) ? -1 : Math.max(lastUploadMs + quietMs - nowMs, 1);
+    }
+
+    synchronized boolean shouldRun(long nowMs) {
+        return !stopped && lastUploadMs >= 0 && nowMs - lastUploadMs >= quietMs;
+    }
+
+    synchronized void ran() {
+        /// A run ingests everything uploaded before it starts
+        lastUploadMs = -1;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+}
+
+//}}}
+//{{{ Server
+
+static class StaticServer {
+    /// Serves the static folder, for small deployments without Nginx. The docs, along with their
+    /// `.gz` siblings for the clients that accept gzip, are kept in a bounded LRU cache which the
+    /// ingestion invalidates whenever it rewrites or deletes one,
+    /// everything else is transferred straight from the file. Versioned names like `style-3.css`
+    /// never change, so browsers may cache them forever. The bookkeeping of the ingestion and its
+    /// temp files are never served
+    private final Path root;
+    private final PageCache pages;
+    private HttpServer server;
+    private ExecutorService workers;
+
+    StaticServer(Dir root, long cacheBytes) {
+        this.root = Paths.get(root.cont);
+        this.pages = new PageCache(cacheBytes);
+    }
+
+    void start(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(appSuburl, this::handle);
+        workers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(workers);
+        server.start();
+        Log.info("serving " + root + " on port " + port());
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    void invalidate(Subfolder doc) {
+        pages.invalidate(doc.cont);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            String method = ex.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            Path file = root.resolve(ex.getRequestURI().getPath().substring(appSuburl.length()))
+                            .normalize();
+            if (!file.startsWith(root)) {
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+            String path = ex.getRequestURI().getRawPath();
+            if (Files.isDirectory(file) && !path.endsWith("/")) {
+                // Docs link their scripts and images relatively, so they must be at a dir URL
+                String query = ex.getRequestURI().getRawQuery();
+                ex.getResponseHeaders().set("Location", path + "/" + (query == null ? "" : "?" + query));
+                ex.sendResponseHeaders(301, -1);
+            } else if (Files.isDirectory(file)) {
+                serveDoc(ex, root.relativize(file).toString(), file.resolve("i.html"));
+            } else if (Files.isRegularFile(file) && !isInternalFile(file.getFileName().toString())) {
+                serveFile(ex, file);
+            } else {
+                ex.sendResponseHeaders(404, -1);
+            }
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void serveDoc(HttpExchange ex, String key, Path file) throws IOException {
+        Page page = pages.get(key);
+        if (page == null) {
+            long epoch = pages.epoch(); // taken before the read so that a rewrite during it wins
+            try {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                byte[] body = Files.readAllBytes(file);
+                Path gz = file.resolveSibling("i.html" + gzExt);
+                byte[] gzipped = Files.isRegularFile(gz) ? Files.readAllBytes(gz) : null;
+                page = new Page(body, gzipped, etag(body.length, modified), modified);
+            } catch (NoSuchFileException e) {
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+            pages.put(key, page, epoch);
+        }
+        var headers = ex.getResponseHeaders();
+        headers.set("Content-Type", contentType("i.html"));
+        headers.set("Cache-Control", "no-cache");
+        headers.set("Vary", "Accept-Encoding");
+        byte[] body = page.body;
+        String etag = page.etag;
+        String accepted = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (page.gzipped != null && accepted != null && accepted.contains("gzip")) {
+            headers.set("Content-Encoding", "gzip");
+            body = page.gzipped;
+            etag = etag(body.length, page.modified);
+        }
+        if (isFresh(ex, etag, page.modified)) {
+            return;
+        }
+        boolean isHead = ex.getRequestMethod().equals("HEAD");
+        ex.sendResponseHeaders(200, isHead ? -1 : body.length);
+        if (!isHead) {
+            ex.getResponseBody().write(body);
+        }
+    }
+
+    private void serveFile(HttpExchange ex, Path file) throws IOException {
+        String fn = file.getFileName().toString();
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        var headers = ex.getResponseHeaders();
+        headers.set("Content-Type", contentType(fn));
+        headers.set("Cache-Control", isVersioned(fn) ? "public, max-age=31536000, immutable" : "no-cache");
+        if (isCompressible(fn)) {
+            headers.set("Vary", "Accept-Encoding");
+            String accepted = ex.getRequestHeaders().getFirst("Accept-Encoding");
+            Path gz = file.resolveSibling(fn + gzExt);
+            if (accepted != null && accepted.contains("gzip") && Files.isRegularFile(gz)) {
+                headers.set("Content-Encoding", "gzip");
+                file = gz;
+                size = Files.size(gz);
+            }
+        }
+        if (isFresh(ex, etag(size, modified), modified)) {
+            return;
+        }
+        if (ex.getRequestMethod().equals("HEAD")) {
+            ex.sendResponseHeaders(200, -1);
+            return;
+        }
+        ex.sendResponseHeaders(200, size);
+        Files.copy(file, ex.getResponseBody());
+    }
+
+    private static boolean isFresh(HttpExchange ex, String etag, long modified) throws IOException {
+        /// Sets the validators, and answers 304 if the client's copy is still current
+        var headers = ex.getResponseHeaders();
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(modified).atZone(ZoneOffset.UTC)));
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        boolean fresh;
+        if (ifNoneMatch != null) {
+            fresh = ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+        } else {
+            fresh = modifiedSince(ex.getRequestHeaders().getFirst("If-Modified-Since"), modified);
+        }
+        if (fresh) {
+            ex.sendResponseHeaders(304, -1);
+        }
+        return fresh;
+    }
+
+    private static boolean modifiedSince(String ifModifiedSince, long modified) {
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                      .toInstant().toEpochMilli();
+            return modified / 1000 <= since / 1000; // the header has a precision of seconds
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    static String etag(long size, long modified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    static boolean isVersioned(String fn) {
+        /// "style-3.css" -> true, "style.css" or "style.latest.css" -> false
+        return fn.matches(".*-[0-9]+\\.[^.]+");
+    }
+
+    static String contentType(String fn) {
+        int indDot = fn.lastIndexOf('.');
+        String ext = (indDot < 0) ? "" : fn.substring(indDot + 1);
+        return switch (ext) {
+            case "html" -> "text/html; charset=utf-8";
+            case "css" -> "text/css; charset=utf-8";
+            case "js" -> "text/javascript; charset=utf-8";
+            case "json" -> "application/json";
+            case "txt" -> "text/plain; charset=utf-8";
+            case "png" -> "image/png";
+            case "jpg", "jpeg" -> "image/jpeg";
+            case "gif" -> "image/gif";
+            case "svg" -> "image/svg+xml";
+            case "ico" -> "image/x-icon";
+            default -> "application/octet-stream";
+        };
+    }
+}
+
+
+record Page(byte[] body, byte[] gzipped, String etag, long modified) {
+    /// A doc with its `.gz` sibling, or null for `gzipped` if it has none
+    long size() {
+        return body.length + ((gzipped == null) ? 0 : gzipped.length);
+    }
+}
+
+
+static final class PageCache {
+    /// An LRU of rendered docs bounded by their total size. Every invalidation bumps the epoch,
+    /// and a page read before the latest invalidation is not cached, since it may be stale
+    private final long maxBytes;
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap(16, 0.75f, true);
+    private long bytes = 0;
+    private long epoch = 0;
+
+    PageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Page get(String key) {
+        return pages.get(key);
+    }
+
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    synchronized void put(String key, Page page, long readEpoch) {
+        if (readEpoch != epoch || page.size() > maxBytes) {
+            return;
+        }
+        Page old = pages.put(key, page);
+        bytes += page.size() - ((old == null) ? 0 : old.size());
+        Iterator<Page> it = pages.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        epoch++;
+        Page old = pages.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    synchronized long size() {
+        return bytes;
+    }
+}
+
+//}}}
+//{{{ Main
+
+public static void main(String[] args) throws IOException {
+    Settings settings = Settings.fromEnv();
+    Blog blog = new Blog(new BlogFileSys(), settings);
+    List<String> argList = Arrays.asList(args);
+    if (argList.contains("--serve")) {
+        // The server lives in the daemon's process so that it hears about every rewritten doc
+        var server = new StaticServer(blogDir, settings.pageCacheMb * 1024L * 1024L);
+        blog.onDocWritten = server::invalidate;
+        server.start(settings.port, Runtime.getRuntime().availableProcessors());
+        new Daemon(blog).serve();
+    } else if (argList.contains("--daemon")) {
+        new Daemon(blog).serve();
+    } else if (argList.contains("--plan")) {
+        print(blog.dryRun());
+    } else {
+        blog.run();
+    }
+    Log.flush();
 }
 
 //}}}
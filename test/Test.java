@@ -9,14 +9,26 @@ import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.function.Predicate;
 import java.util.function.Function;
 import java.lang.reflect.Array;
 import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.time.format.DateTimeFormatter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import static tech.sozonov.blog.Blog.*;
 
 //}}}
@@ -26,23 +38,25 @@ class Test {
 //{{{ MockFileSys
 
 static class MockFileSys implements FileSys {
+    /// Every method is synchronized so that the parallel render path can be tested on it
     private Map<String, L<MockFile>> fs = new HashMap<String, L<MockFile>>();
 
     @Override
-    public boolean dirExists(Dir dir) {
+    public synchronized boolean dirExists(Dir dir) {
         return fs.containsKey(dir.cont);
     }
 
     @Override
-    public L<FileInfo> listFiles(Dir dir) {
+    public synchronized L<FileInfo> listFiles(Dir dir) {
         if (!fs.containsKey(dir.cont))    {
             return new L();
         }
-        return fs.get(dir.cont).trans(x -> new FileInfo(x.name));
+        return fs.get(dir.cont).trans(x -> new FileInfo(x.name, (x.bytes != null)
+                ? x.bytes.length : x.cont.getBytes(StandardCharsets.UTF_8).length));
     }
 
     @Override
-    public L<Subfolder> listSubfolders(Dir dir) {
+    public synchronized L<Subfolder> listSubfolders(Dir dir) {
         String dirWithSl = (dir.cont.endsWith("/")) ? dir.cont : (dir.cont + "/");
         int prefixLength = dirWithSl.length();
         L<Subfolder> result = new L();
@@ -55,7 +69,7 @@ static class MockFileSys implements FileSys {
     }
 
     @Override
-    public L<Subfolder> listSubfoldersContaining(Dir dir, String fN) {
+    public synchronized L<Subfolder> listSubfoldersContaining(Dir dir, String fN) {
         /// Gets the list of directories containing a filename, for example "i.html"
         String dirWithSl = (dir.cont.endsWith("/")) ? dir.cont : (dir.cont + "/");
         int prefixLength = dirWithSl.length();
@@ -70,15 +84,34 @@ static class MockFileSys implements FileSys {
     }
 
     @Override
-    public String readTextFile(Dir dir, String fN) {
+    public synchronized String readTextFile(Dir dir, String fN) {
         if (!fs.containsKey(dir.cont)) {
             return "";
         }
-        return fs.get(dir.cont).first(x -> x.name.equals(fN)).map(x -> x.cont).orElse("");
+        return fs.get(dir.cont).first(x -> x.name.equals(fN)).map(x -> {
+            if (x.appended != null) {
+                x.cont += x.appended;
+                x.appended = null;
+            }
+            return x.cont;
+        }).orElse("");
     }
 
     @Override
-    public boolean saveOverwriteFile(Dir dir, String fN, String cont) {
+    public synchronized byte[] readBinaryFile(Dir dir, String fN) {
+        byte[] bytes = fs.containsKey(dir.cont)
+                ? fs.get(dir.cont).first(x -> x.name.equals(fN)).map(x -> x.bytes).orElse(null)
+                : null;
+        return (bytes != null) ? bytes : readTextFile(dir, fN).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized ByteBuffer mapFile(Dir dir, String fN) {
+        return ByteBuffer.wrap(readBinaryFile(dir, fN));
+    }
+
+    @Override
+    public synchronized boolean saveOverwriteFile(Dir dir, String fN, String cont) {
         var newFile = new MockFile(fN, cont, Instant.now());
         if (fs.containsKey(dir.cont)) {
             var existingFiles = fs.get(dir.cont);
@@ -96,7 +129,37 @@ static class MockFileSys implements FileSys {
 
 
     @Override
-    public boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName) {
+    public synchronized boolean appendToFile(Dir dir, String fN, String cont) {
+        var existing = fs.containsKey(dir.cont)
+                ? fs.get(dir.cont).first(x -> x.name.equals(fN)) : Optional.<MockFile>empty();
+        if (existing.isEmpty()) {
+            return saveOverwriteFile(dir, fN, cont);
+        }
+        MockFile file = existing.get();
+        if (file.appended == null) {
+            file.appended = new StringBuilder();
+        }
+        file.appended.append(cont);
+        return true;
+    }
+
+
+    @Override
+    public synchronized boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+        var bytes = new java.io.ByteArrayOutputStream();
+        for (ByteBuffer part : parts) {
+            byte[] partBytes = new byte[part.remaining()];
+            part.get(partBytes);
+            bytes.writeBytes(partBytes);
+        }
+        saveOverwriteFile(dir, fN, bytes.toString(StandardCharsets.UTF_8));
+        fs.get(dir.cont).first(x -> x.name.equals(fN)).get().bytes = bytes.toByteArray();
+        return true;
+    }
+
+
+    @Override
+    public synchronized boolean moveFileWithRename(Dir dir, String fN, Dir targetDir, String newName) {
         var sourceFiles = fs.get(dir.cont);
         int indexSource = sourceFiles.findIndex(x -> x.name.equals(fN));
         MockFile theFile = sourceFiles.get(indexSource);
@@ -108,7 +171,7 @@ static class MockFileSys implements FileSys {
             return true;
         }
 
-        var existingInd = targetFiles.indexOf(newName);
+        var existingInd = targetFiles.findIndex(x -> x.name.equals(newName));
         if (existingInd < 0) {
             targetFiles.add(theFile);
         } else {
@@ -119,7 +182,7 @@ static class MockFileSys implements FileSys {
     }
 
     @Override
-    public boolean deleteIfExists(Dir dir, String fN) {
+    public synchronized boolean deleteIfExists(Dir dir, String fN) {
         if (!fs.containsKey(dir.cont)) {
             return false;
         }
@@ -133,7 +196,7 @@ static class MockFileSys implements FileSys {
     }
 
     @Override
-    public boolean deleteDirIfExists(Dir dir) {
+    public synchronized boolean deleteDirIfExists(Dir dir) {
         /// Deletes a dir with all its contents and subfolders
         for (String dirName : fs.keySet()) {
             if (dirName.startsWith(dir.cont)) {
@@ -146,9 +209,60 @@ static class MockFileSys implements FileSys {
 }
 
 
+static class MockAsyncFileSys implements AsyncFileSys {
+    /// Runs every operation of a `MockFileSys` on a thread of its own, so the operations
+    /// really are in flight at the same time
+    private final MockFileSys fs;
+    private final Executor threadPerOp = r -> new Thread(r).start();
+
+    public MockAsyncFileSys(MockFileSys fs) {
+        this.fs = fs;
+    }
+
+    @Override
+    public CompletableFuture<L<FileInfo>> listFiles(Dir dir) {
+        return CompletableFuture.supplyAsync(() -> fs.listFiles(dir), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<String> readTextFile(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.readTextFile(dir, fN), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryFile(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.readBinaryFile(dir, fN), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveOverwriteFile(Dir dir, String fN, String cont) {
+        return CompletableFuture.supplyAsync(() -> fs.saveOverwriteFile(dir, fN, cont), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> moveFileWithRename(Dir dir, String fN, Dir targetDir,
+                                                         String newName) {
+        return CompletableFuture.supplyAsync(
+                () -> fs.moveFileWithRename(dir, fN, targetDir, newName), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfExists(Dir dir, String fN) {
+        return CompletableFuture.supplyAsync(() -> fs.deleteIfExists(dir, fN), threadPerOp);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteDirIfExists(Dir dir) {
+        return CompletableFuture.supplyAsync(() -> fs.deleteDirIfExists(dir), threadPerOp);
+    }
+}
+
+
 static class MockFile {
     String name;
     String cont;
+    byte[] bytes; // the exact content if it was written as binary, like a `.gz`
+    StringBuilder appended; // not yet in `cont`, so that many appends don't copy it every time
     Instant modified;
 
     public MockFile(String name, String cont, Instant modified)  {
@@ -246,6 +360,61 @@ static <X> int findIndex(X[] arr, Predicate<X> pred) {
     return -1;
 }
 
+static final class CountingChars implements CharSequence {
+    /// Counts the reads of a text, so a test can tell a linear scan from a quadratic one
+    final String cont;
+    long reads = 0;
+
+    CountingChars(String cont) {
+        this.cont = cont;
+    }
+
+    @Override
+    public int length() {
+        return cont.length();
+    }
+
+    @Override
+    public char charAt(int ind) {
+        reads++;
+        return cont.charAt(ind);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        reads += end - start;
+        return cont.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return cont;
+    }
+}
+
+static final String graphDoc = """
+<html><head><script type="text/javascript" src="../graph.js"></script></head>
+<body>uses graph</body></html>""";
+
+
+static Dir ingestDirOf(String sourceDir) {
+    /// An upload dir like `ingestDir/a.b.c`
+    return new Dir(ingestDir, new Subfolder(sourceDir));
+}
+
+
+static void seedCoreFiles(FileSys fs) {
+    /// A blog dir with the first version of every fixed core file, like after the first run
+    seedCoreFiles(fs, blogDir);
+}
+
+
+static void seedCoreFiles(FileSys fs, Dir dir) {
+    for (String fixed : fixedCoreFiles) {
+        fs.saveOverwriteFile(dir, fixed, "v1 of " + fixed);
+    }
+}
+
 
 //}}}
 //{{{ Tests
@@ -296,7 +465,7 @@ static void ingestCore() {
     fs.saveOverwriteFile(inDir, "style.css", "core styles");
     Blog b = new Blog(fs);
 
-    b.ingestCore();
+    b.run();
 
     var coreNames = fs.listFiles(blogDir).trans(x -> x.name);
     assertArrsEqual(coreNames, L.of("script.js", "style.css"));
@@ -313,7 +482,7 @@ static void updateCore() {
     fs.saveOverwriteFile(inDir, "termsOfUse.html", "New terms of use");
     Blog b = new Blog(fs);
 
-    b.ingestCore();
+    b.run();
 
     var coreNames = fs.listFiles(blogDir).trans(x -> x.name);
     assertArrsEqual(coreNames,
@@ -404,15 +573,1071 @@ static void moveAndReadLocalFilesTest() {
 }
 
 
+static void asyncMoveTest() {
+    /// Same as `moveAndReadLocalFilesTest`, but with all the moves in flight at once
+    var fs = new MockFileSys();
+    Blog blog = new Blog(fs, new MockAsyncFileSys(fs), new Settings());
+    Dir sourceDir = ingestDirOf("a.b");
+    Dir targetDir = new Dir(blogDir, new Subfolder("a/b"));
+    fs.saveOverwriteFile(targetDir, "a.txt", "old");
+    fs.saveOverwriteFile(targetDir, "b.txt", "old");
+    fs.saveOverwriteFile(sourceDir, "b.txt", "new");
+    fs.saveOverwriteFile(sourceDir, "c.txt", "new");
+    fs.saveOverwriteFile(sourceDir, "d.txt", "new");
+
+    LocalFiles local = blog.moveAndReadLocalFiles(fs.listFiles(sourceDir), sourceDir, targetDir);
+
+    blAssert(local.versions.size() == 4
+            && local.versions.get(new UnvName("b.txt")).equals("b-2.txt")
+            && local.versions.get(new UnvName("d.txt")).equals("d.txt"));
+    blAssert(fs.listFiles(sourceDir).size() == 0);
+}
+
+
+static void unstampedCatalogTest() {
+    /// A doc without a date stamp is saved with empty dates, which must load back as such
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    Dir docDir = new Dir(blogDir, new Subfolder("a/b"));
+    fs.saveOverwriteFile(docDir, "i.html", "<html><head></head><body>No stamp</body></html>");
+    Catalog scanned = Catalog.scan(fs);
+    scanned.renderKeys.put(new Subfolder("a/b"), new RenderKey("", "deps"));
+    scanned.save(fs);
+    Catalog cat = Catalog.load(fs);
+
+    var dates = cat.docs.get(new Subfolder("a/b"));
+    blAssert(dates.created.isEmpty() && dates.updated.isEmpty());
+    blAssert(cat.renderKeys.get(new Subfolder("a/b")).equals(new RenderKey("", "deps")));
+}
+
+
+static void catalogTest() {
+    /// The catalog survives a save and load, and an old doc keeps its global script
+    /// even when that script is not re-ingested
+    var fs = new MockFileSys();
+    fs.saveOverwriteFile(blogDir, "script.js", "core script");
+    fs.saveOverwriteFile(blogDir, "script-2.js", "core script");
+    fs.saveOverwriteFile(blogDir, "graph.js", "graph");
+    fs.saveOverwriteFile(blogDir, "graph-3.js", "graph");
+    Dir docDir = new Dir(blogDir, new Subfolder("a/b"));
+    fs.saveOverwriteFile(docDir, "img-2.png", "image");
+    fs.saveOverwriteFile(docDir, "i.html", """
+        <head><script type="text/javascript" src="/blog/graph-3.js"></script></head>
+            <body>
+            <div id="_content">
+                <!-- Dates --><div id="_dtSt">Created: 2023-04-05, updated: 2023-05-01</div><!-- / -->
+                Old content<img src="img-2.png">
+            <!-- _contentEnd -->
+            </div>
+            </body></html>
+        """);
+    Catalog.scan(fs).save(fs);
+    Catalog cat = Catalog.load(fs);
+
+    blAssert(cat.coreVersions.get("script.js").equals("script-2.js"));
+    blAssert(cat.globalVersions.get("graph").equals("graph-3.js"));
+    var dates = cat.docs.get(new Subfolder("a/b"));
+    blAssert(dates.created.equals("2023-04-05") && dates.updated.equals("2023-05-01"));
+    blAssert(cat.assets.get(new Subfolder("a/b")).get(new UnvName("img.png")).equals("img-2.png"));
+
+    // A new style.css rebuilds every doc from its old version
+    seedCoreFiles(fs, ingestDir);
+    fs.deleteIfExists(ingestDir, "script.js");
+    new Blog(fs).run();
+    String cont = fs.readTextFile(docDir, "i.html");
+    blAssert(cont.contains("src=\"/blog/graph-3.js\"") && cont.contains("src=\"img-2.png\""));
+}
+
+
+static void unchangedAssetTest() {
+    /// Re-uploading the current version of an asset neither bumps it nor rebuilds the doc
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    Dir docDir = new Dir(blogDir, new Subfolder("a/b"));
+    fs.saveOverwriteFile(docDir, "img-2.png", "same image");
+    fs.saveOverwriteFile(docDir, "i.html", "<head></head><body>old doc</body>");
+    Dir upload = ingestDirOf("a.b");
+    fs.saveOverwriteFile(upload, "img.png", "same image");
+    Blog b = new Blog(fs);
+
+    b.run();
+
+    // The first run under gzip gives the doc its `.gz` sibling, see `syncGzSiblings`
+    assertArrsEqual(fs.listFiles(docDir).trans(x -> x.name).filter(x -> !isGzSibling(x)),
+                    L.of("img-2.png", "i.html"));
+    blAssert(fs.readTextFile(docDir, "i.html").equals("<head></head><body>old doc</body>"));
+    blAssert(!fs.dirExists(upload));
+}
+
+
+static void coreAliasTest() {
+    /// With core aliases, a new style.css only repoints the alias instead of touching the docs
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.coreAliases = true;
+    Blog b = new Blog(fs, settings);
+    b.startRun();
+    blAssert(b.plan().core.docsAffected); // switching to aliases rebuilds the docs once
+    b.run();
+
+    fs.saveOverwriteFile(ingestDir, "style.css", "v2 of style.css");
+    b = new Blog(fs, settings);
+    b.startRun();
+    blAssert(!b.plan().core.docsAffected);
+    b.run();
+    blAssert(fs.readTextFile(blogDir, "style-2.css").equals("v2 of style.css"));
+    blAssert(fs.readTextFile(blogDir, "style.latest.css").equals("v2 of style.css"));
+    blAssert(b.coreLink("style.css").equals("/blog/style.latest.css"));
+}
+
+
+static void aliasRescanTest() {
+    /// Rebuilding the catalog doesn't take the core aliases for extra global scripts, which
+    /// would include the core script a second time
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.coreAliases = true;
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    new Blog(fs, settings).run();
+    blAssert(fs.readTextFile(blogDir, "script.latest.js").length() > 0);
+
+    fs.deleteIfExists(blogDir, catalogFile);
+    fs.saveOverwriteFile(ingestDirOf("a.first"), "i.html",
+            "<html><head></head><body>edited</body></html>");
+    var b = new Blog(fs, settings);
+    b.run();
+    blAssert(!b.globalVersions.containsKey("script"));
+    String doc = fs.readTextFile(new Dir(blogDir, new Subfolder("a/first")), "i.html");
+    blAssert(doc.contains("edited"));
+    blAssert(doc.indexOf("script.latest.js") == doc.lastIndexOf("script.latest.js"));
+}
+
+
+static void globalDependentsTest() {
+    /// A new version of an extra global script rebuilds only the docs that include it
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    fs.saveOverwriteFile(blogDir, "graph.js", "v1 of graph");
+    fs.saveOverwriteFile(ingestDirOf("a.withGraph"), "i.html", graphDoc);
+    fs.saveOverwriteFile(ingestDirOf("a.plain"), "i.html",
+            "<html><head></head><body>no scripts</body></html>");
+    new Blog(fs).run();
+
+    Dir plainDir = new Dir(blogDir, new Subfolder("a/plain"));
+    Dir graphDir = new Dir(blogDir, new Subfolder("a/withGraph"));
+    fs.saveOverwriteFile(plainDir, "i.html", "untouched");
+    fs.saveOverwriteFile(ingestDir, "graph.js", "v2 of graph");
+    new Blog(fs).run();
+
+    blAssert(fs.readTextFile(plainDir, "i.html").equals("untouched"));
+    blAssert(fs.readTextFile(graphDir, "i.html").contains("/blog/graph-2.js"));
+}
+
+
+static void externalNavTest() {
+    /// With the external nav, a new doc rewrites the nav files but not the other docs
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.externalNav = true;
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    Blog b = new Blog(fs, settings);
+    b.run();
+
+    Dir firstDir = new Dir(blogDir, new Subfolder("a/first"));
+    String firstDoc = fs.readTextFile(firstDir, "i.html");
+    blAssert(firstDoc.contains("\"navUrl\": \"/blog/nav.latest.json\""));
+    blAssert(fs.readTextFile(blogDir, "nav.json").contains("a/first"));
+
+    createSimpleDocForTest(fs, ingestDirOf("a.second"));
+    b.run();
+
+    blAssert(fs.readTextFile(firstDir, "i.html").equals(firstDoc));
+    blAssert(fs.readTextFile(blogDir, "nav.latest.json").equals("{\"src\": \"/blog/nav-2.json\"}"));
+    String nav = fs.readTextFile(blogDir, "nav-2.json");
+    blAssert(nav.contains("a/first") && nav.contains("a/second"));
+}
+
+
+static void navRescanTest() {
+    /// Rebuilding the catalog finds the current nav version, so the next one gets a new name.
+    /// Versioned nav files are cached as immutable, so a reused name would be served stale
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.externalNav = true;
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    new Blog(fs, settings).run();
+    createSimpleDocForTest(fs, ingestDirOf("a.second"));
+    new Blog(fs, settings).run();
+    String second = fs.readTextFile(blogDir, "nav-2.json");
+    blAssert(second.contains("a/second"));
+
+    fs.deleteIfExists(blogDir, catalogFile);
+    blAssert(Catalog.scan(fs).navFile.equals("nav-2.json"));
+    createSimpleDocForTest(fs, ingestDirOf("a.third"));
+    new Blog(fs, settings).run();
+    blAssert(fs.readTextFile(blogDir, "nav.latest.json").equals("{\"src\": \"/blog/nav-3.json\"}"));
+    blAssert(fs.readTextFile(blogDir, "nav-3.json").contains("a/third"));
+    blAssert(fs.readTextFile(blogDir, "nav-2.json").equals(second));
+}
+
+
+static void flagsRescanTest() {
+    /// Rebuilding the catalog reads the modes the docs were rendered with off the docs, so the
+    /// next run doesn't rebuild the whole site as if the modes had just been switched on
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.coreAliases = true;
+    settings.prunedNav = true;
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    createSimpleDocForTest(fs, ingestDirOf("a.second"));
+    new Blog(fs, settings).run();
+
+    fs.deleteIfExists(blogDir, catalogFile);
+    Plan plan = new Blog(fs, settings).plan();
+    blAssert(!plan.core.docsAffected && plan.ing.updateDocs.isEmpty());
+
+    // Docs rendered in different modes, like after an interrupted switch, are all rebuilt
+    fs.deleteIfExists(blogDir, catalogFile);
+    fs.saveOverwriteFile(new Dir(blogDir, new Subfolder("a/second")), "i.html",
+            fs.readTextFile(new Dir(blogDir, new Subfolder("a/second")), "i.html")
+              .replace("script.latest.js", "script.js"));
+    plan = new Blog(fs, settings).plan();
+    blAssert(plan.core.docsAffected && plan.ing.updateDocs.size() == 2);
+}
+
+
+static void htmlScanTest() {
+    /// The scanner must stay inside each tag and be linear even on hostile input
+    var scripts = parseSrcAttribs(
+            "<script type=\"application/json\">{}</script><img src=\"a.png\">", "script");
+    blAssert(scripts.size() == 0); // the src of the next tag is not the script's
+
+    var imgs = parseSrcAttribs("<img alt='a > b src=\"fake.png\"' src=\"real.png\">", "img");
+    blAssert(imgs.size() == 1 && imgs.get(0).text().equals("real.png"));
+
+    blAssert(parseSrcAttribs("<imgur src=\"x.png\">", "img").size() == 0);
+
+    boolean threw = false;
+    try {
+        parseSrcAttribs("<img src=\"a.png\"", "img");
+    } catch (RuntimeException e) {
+        threw = true;
+    }
+    blAssert(threw);
+
+    var hostile = new StringBuilder("<html><head></head><body>");
+    for (int i = 0; i < 200000; i++) {
+        hostile.append("<img alt=\"no src\"><script>");
+    }
+    hostile.append("<img src=\"last.png\"></body></html>");
+    var counted = new CountingChars(hostile.toString());
+    HtmlScan scan = HtmlScan.of(counted);
+    blAssert(scan.imgSrcs.size() == 1 && scan.imgSrcs.get(0).text().equals("last.png"));
+    blAssert(counted.reads <= 3L * counted.length());
+
+    String doc = "<html><head><script src=\"local.js\"></script></head><body>"
+            + contentStartMarker + stampOpen + "x" + stampClose + contentEndMarker + "</body></html>";
+    scan = HtmlScan.of(doc);
+    blAssert(scan.headStart == doc.indexOf("<head>") + 6 && scan.headEnd == doc.indexOf("</head>"));
+    blAssert(scan.contentStart == doc.indexOf(contentStartMarker)
+            && scan.contentEnd == doc.indexOf(contentEndMarker));
+    blAssert(scan.stampStart == doc.indexOf(stampOpen) && scan.stampEnd == doc.indexOf(stampClose));
+    blAssert(scan.content(doc, true).equals(stampOpen + "x" + stampClose));
+}
+
+
+static void templateTest() {
+    /// A template loaded from a file renders around the content, written with a gathering write
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    fs.saveOverwriteFile(Dir.ofString("/etc/blog"), "template.html", "<html><head>\n"
+            + Template.headSlot + "\n</head><body>" + contentStartMarker + Template.contentSlot
+            + "\n<footer>Mine</footer></body></html>");
+    var settings = new Settings();
+    settings.templateFile = "/etc/blog/template.html";
+    Blog b = new Blog(fs, settings);
+    createSimpleDocForTest(fs, ingestDirOf("a.b"));
+    b.run();
+
+    String doc = fs.readTextFile(new Dir(blogDir, new Subfolder("a/b")), "i.html");
+    blAssert(doc.startsWith("<html><head>\n    <script") && doc.endsWith("<footer>Mine</footer></body></html>"));
+    blAssert(Blog.extractContent(doc, true).contains("<div>Hello world!</div>"));
+    blAssert(!b.template.version.equals(Template.standard.version));
+
+    try {
+        Dir tempDir = Dir.ofString(Files.createTempDirectory("blogTest").toString());
+        var parts = new ByteBuffer[] { Template.standard.end.duplicate(),
+                                       ByteBuffer.wrap("жж".getBytes(StandardCharsets.UTF_8)) };
+        blAssert(new BlogFileSys().saveOverwriteFile(new Dir(tempDir, new Subfolder("x")), "i.html", parts));
+        blAssert(new BlogFileSys().readTextFile(new Dir(tempDir, new Subfolder("x")), "i.html")
+                .equals(contentEndMarker + templateEnd + "жж"));
+    } catch (java.io.IOException e) {
+        throw new RuntimeException(e);
+    }
+}
+
+
+static void warmRunsTest() {
+    /// A daemon does many runs on one Blog: the nav is reused until the set of docs changes
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    Blog b = new Blog(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    b.run();
+    NavTree nav = b.warmNav;
+    blAssert(nav != null);
+
+    fs.saveOverwriteFile(ingestDirOf("a.first"), "i.html",
+            "<html><head></head><body>edited</body></html>");
+    b.run();
+    blAssert(b.warmNav == nav);
+    blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder("a/first")), "i.html").contains("edited"));
+
+    createSimpleDocForTest(fs, ingestDirOf("a.second"));
+    b.run();
+    blAssert(b.warmNav != nav);
+    blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder("a/second")), "i.html").contains("a/first"));
+}
+
+
+static void idleRunTest() {
+    /// A run with nothing uploaded, like a wakeup of the daemon by its own last run, writes
+    /// nothing. Only a catalog just rebuilt from disk gets saved
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    Blog b = new Blog(fs);
+    b.run();
+    String writes = Metrics.label("op", "write");
+    long writesBefore = b.metrics.counter("blog_fs_ops_total", writes);
+    b.run();
+    blAssert(b.metrics.counter("blog_fs_ops_total", writes) == writesBefore);
+    blAssert(!fs.listFiles(blogDir).any(x -> x.name.equals(journalFile)));
+
+    fs.deleteIfExists(blogDir, catalogFile);
+    b = new Blog(fs);
+    b.run();
+    blAssert(fs.readTextFile(blogDir, catalogFile).contains("doc\ta/first"));
+    blAssert(b.metrics.counter("blog_fs_ops_total", writes) == 1);
+}
+
+
+static void quietPeriodTest() {
+    /// The daemon runs once uploads have been quiet for the period, and not on its own deletes
+    var quiet = new QuietPeriod(3000);
+    blAssert(quiet.waitMs(0) == -1 && !quiet.shouldRun(0)); // nothing to wait for
+    quiet.event(true, 1000);
+    blAssert(quiet.waitMs(2000) == 2000 && !quiet.shouldRun(3999));
+    quiet.event(true, 3000); // another upload restarts the period
+    blAssert(!quiet.shouldRun(4000) && quiet.shouldRun(6000));
+    quiet.ran();
+    quiet.event(false, 6500); // the deletes of the run itself
+    blAssert(quiet.waitMs(7000) == -1 && !quiet.shouldRun(20000));
+
+    blAssert(QuietPeriod.isUpload(StandardWatchEventKinds.ENTRY_CREATE, true));
+    blAssert(QuietPeriod.isUpload(StandardWatchEventKinds.ENTRY_MODIFY, true));
+    blAssert(!QuietPeriod.isUpload(StandardWatchEventKinds.ENTRY_MODIFY, false)); // moved away since
+    blAssert(!QuietPeriod.isUpload(StandardWatchEventKinds.ENTRY_DELETE, false));
+    blAssert(QuietPeriod.isUpload(StandardWatchEventKinds.OVERFLOW, false));
+
+    quiet.event(true, 21000);
+    quiet.stop();
+    blAssert(!quiet.shouldRun(30000));
+}
+
+
+static void daemonTest() {
+    /// Over a real watched dir: a run at the start and one per upload, none for the deletes of
+    /// the runs, and a stop in the middle of a run waits for it to finish
+    var runs = new java.util.concurrent.LinkedBlockingQueue<Integer>();
+    var release = new java.util.concurrent.CountDownLatch(1);
+    boolean[] finished = { false };
+    Daemon daemon = null;
+    try {
+        Path watched = Files.createTempDirectory("blogIngest");
+        var settings = new Settings();
+        settings.quietMs = 100;
+        Blog blog = new Blog(new MockFileSys(), settings) {
+            int count = 0;
+
+            @Override
+            void run() {
+                count++;
+                try (var files = Files.list(watched)) { // like the moves of the uploads
+                    for (Path pt : files.toList()) {
+                        Files.delete(pt);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                runs.add(count);
+                if (count == 3) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    finished[0] = true;
+                }
+            }
+        };
+        daemon = new Daemon(blog, watched);
+        Daemon served = daemon;
+        Thread serving = new Thread(() -> {
+            try {
+                served.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        blAssert(runs.poll(5, TimeUnit.SECONDS) == 1);
+
+        Files.writeString(watched.resolve("a.txt"), "upload");
+        blAssert(runs.poll(5, TimeUnit.SECONDS) == 2);
+        blAssert(runs.poll(settings.quietMs * 5, TimeUnit.MILLISECONDS) == null);
+
+        Files.writeString(watched.resolve("b.txt"), "upload");
+        blAssert(runs.poll(5, TimeUnit.SECONDS) == 3);
+        var stopper = new Thread(daemon::stop);
+        stopper.start();
+        stopper.join(200);
+        blAssert(stopper.isAlive() && !finished[0]); // waiting for the run
+        release.countDown();
+        stopper.join(5000);
+        serving.join(5000);
+        blAssert(!serving.isAlive() && finished[0] && runs.isEmpty());
+    } catch (IOException | InterruptedException e) {
+        throw new RuntimeException(e);
+    } finally {
+        release.countDown();
+        if (daemon != null) {
+            daemon.stop(); // the loop of a failed test is still waiting
+        }
+    }
+}
+
+
+static void staticServerTest() {
+    /// The built-in server answers conditional GETs, and serves a cached doc until it's invalidated.
+    /// Doc dirs are redirected to their slashed URLs, and the ingestion's own files stay hidden
+    StaticServer server = null;
+    try {
+        Dir root = Dir.ofString(Files.createTempDirectory("blogServe").toString());
+        var fs = new BlogFileSys();
+        Dir docDir = new Dir(root, new Subfolder("a/first"));
+        fs.saveOverwriteFile(docDir, "i.html", "first version");
+        fs.saveOverwriteFile(root, "style-2.css", "body {}");
+        for (String hidden : List.of(catalogFile, journalFile, catalogPendingFile, "style-3.css.gz.tmp")) {
+            fs.saveOverwriteFile(root, hidden, "internal");
+        }
+        server = new StaticServer(root, 1024);
+        server.start(0, 2);
+        var client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + server.port() + appSuburl;
+
+        var resp = client.send(HttpRequest.newBuilder(URI.create(base + "a/first?x=1")).build(),
+                               HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.statusCode() == 301
+                 && resp.headers().firstValue("Location").get().equals(appSuburl + "a/first/?x=1"));
+        resp = client.send(HttpRequest.newBuilder(URI.create(base + "a/first/")).build(),
+                           HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.statusCode() == 200 && resp.body().equals("first version"));
+        String etag = resp.headers().firstValue("ETag").get();
+        var notModified = client.send(HttpRequest.newBuilder(URI.create(base + "a/first/"))
+                .header("If-None-Match", etag).build(), HttpResponse.BodyHandlers.ofString());
+        blAssert(notModified.statusCode() == 304);
+
+        fs.saveOverwriteFile(docDir, "i.html", "second version");
+        resp = client.send(HttpRequest.newBuilder(URI.create(base + "a/first/")).build(),
+                           HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.body().equals("first version")); // still cached
+        server.invalidate(new Subfolder("a/first"));
+        resp = client.send(HttpRequest.newBuilder(URI.create(base + "a/first/")).build(),
+                           HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.body().equals("second version"));
+
+        fs.saveOverwriteFile(docDir, "i.html.gz", new ByteBuffer[] {
+                gzip(ByteBuffer.wrap("second version".getBytes(StandardCharsets.UTF_8))) });
+        server.invalidate(new Subfolder("a/first"));
+        var zipped = client.send(HttpRequest.newBuilder(URI.create(base + "a/first/"))
+                .header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+        blAssert(zipped.headers().firstValue("Content-Encoding").get().equals("gzip"));
+        blAssert(zipped.headers().firstValue("Vary").get().equals("Accept-Encoding"));
+        blAssert(gunzip(zipped.body()).equals("second version"));
+
+        resp = client.send(HttpRequest.newBuilder(URI.create(base + "style-2.css")).build(),
+                           HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.body().equals("body {}"));
+        blAssert(resp.headers().firstValue("Cache-Control").get().contains("immutable"));
+
+        resp = client.send(HttpRequest.newBuilder(URI.create(base + "a/%2e%2e/%2e%2e/x")).build(),
+                           HttpResponse.BodyHandlers.ofString());
+        blAssert(resp.statusCode() == 404);
+        for (String hidden : List.of(catalogFile, journalFile, catalogPendingFile, "style-3.css.gz.tmp")) {
+            resp = client.send(HttpRequest.newBuilder(URI.create(base + hidden)).build(),
+                               HttpResponse.BodyHandlers.ofString());
+            blAssert(resp.statusCode() == 404);
+        }
+    } catch (Exception e) {
+        throw new RuntimeException(e);
+    } finally {
+        if (server != null) {
+            server.stop();
+        }
+    }
+}
+
+
+static void gzipSiblingsTest() {
+    /// Written docs and assets get `.gz` siblings, which leave along with their old versions
+    var fs = new MockFileSys();
+    seedCoreFiles(fs, ingestDir);
+    Blog b = new Blog(fs);
+    Dir sourceDir = ingestDirOf("a.b");
+    Dir targetDir = new Dir(blogDir, new Subfolder("a/b"));
+    createSimpleDocForTest(fs, sourceDir); // also puts a first version of the core files there
+    b.run();
+
+    blAssert(gunzip(fs.readBinaryFile(blogDir, "style-2.css.gz")).equals("v1 of style.css"));
+
+    blAssert(gunzip(fs.readBinaryFile(targetDir, "i.html.gz"))
+            .equals(fs.readTextFile(targetDir, "i.html")));
+    blAssert(gunzip(fs.readBinaryFile(targetDir, "local.js.gz")).equals("Local script"));
+    blAssert(!fs.listFiles(targetDir).any(x -> x.name.equals("myImg.png.gz")));
+    blAssert(readLocalFiles(fs.listFiles(targetDir)).versions.size() == 2);
+
+    fs.saveOverwriteFile(sourceDir, "local.js", "Local script v2");
+    b.run();
+
+    blAssert(gunzip(fs.readBinaryFile(targetDir, "local-2.js.gz")).equals("Local script v2"));
+    blAssert(!fs.listFiles(targetDir).any(x -> x.name.startsWith("local.js")));
+}
+
+
+static void gzipSwitchTest() {
+    /// Switching gzip on gives the siblings to the files of the docs no run touches, switching it
+    /// off takes them away. Temp files left by an interrupted write are neither assets nor gzipped
+    var fs = new MockFileSys();
+    seedCoreFiles(fs, ingestDir);
+    var settings = new Settings();
+    settings.gzip = false;
+    Dir targetDir = new Dir(blogDir, new Subfolder("a/b"));
+    createSimpleDocForTest(fs, ingestDirOf("a.b"));
+    new Blog(fs, settings).run();
+    fs.saveOverwriteFile(targetDir, "local-3.js.tmp", "half a script");
+    blAssert(!fs.listFiles(targetDir).any(x -> x.name.endsWith(gzExt)));
+    blAssert(readLocalFiles(fs.listFiles(targetDir)).versions.get(new UnvName("local.js"))
+             .equals("local.js"));
+
+    settings.gzip = true;
+    new Blog(fs, settings).run(); // nothing uploaded
+    blAssert(gunzip(fs.readBinaryFile(targetDir, "i.html.gz"))
+            .equals(fs.readTextFile(targetDir, "i.html")));
+    blAssert(gunzip(fs.readBinaryFile(targetDir, "local.js.gz")).equals("Local script"));
+    blAssert(gunzip(fs.readBinaryFile(blogDir, "style-2.css.gz")).equals("v1 of style.css"));
+    var names = fs.listFiles(blogDir).trans(x -> x.name).toSet();
+    names.addAll(fs.listFiles(targetDir).trans(x -> x.name).toSet());
+    blAssert(!names.contains(catalogFile + gzExt) && !names.contains("local-3.js.tmp" + gzExt));
+    blAssert(!names.stream().anyMatch(x -> x.endsWith(gzExt + ".tmp")));
+
+    settings.gzip = false;
+    new Blog(fs, settings).run();
+    blAssert(!fs.listFiles(targetDir).any(x -> x.name.endsWith(gzExt)));
+    blAssert(!fs.listFiles(blogDir).any(x -> x.name.endsWith(gzExt)));
+}
+
+
+static String gunzip(byte[] compressed) {
+    try (var in = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(compressed))) {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (java.io.IOException e) {
+        throw new RuntimeException(e);
+    }
+}
+
+
+static void versionIndexTest() {
+    /// The index bumps like `makeNameBumpedVersion`, and stays linear on a dir with many versions
+    var index = VersionIndex.of(L.of(new FileInfo("asdf.png"), new FileInfo("local.js"),
+                                     new FileInfo("local-3.js"), new FileInfo("local-2.js")));
+    blAssert(index.current(new UnvName("local.js")).equals("local-3.js"));
+    blAssert(index.bump(new UnvName("local.js")).equals("local-4.js"));
+    blAssert(index.bump(new UnvName("local.js")).equals("local-5.js"));
+    blAssert(index.bump(new UnvName("new.css")).equals("new.css"));
+    blAssert(index.current(new UnvName("new.css")).equals("new.css"));
+    var localFiles = index.toLocalFiles();
+    blAssert(localFiles.versions.get(new UnvName("local.js")).equals("local-5.js"));
+    blAssert(localFiles.filesToDelete.size() == 8); // 4 old versions and their `.gz` siblings
+    blAssert(new UnvName("nav.json").toVersion(3).equals("nav-3.json"));
+
+    L<FileInfo> root = new L();
+    for (int i = 1; i <= 50000; i++) {
+        root.add(new FileInfo("script-" + i + ".js"));
+        root.add(new FileInfo("graph-" + i + ".js"));
+    }
+    index = VersionIndex.of(root);
+    root.clear(); // the bumps must not go back to the listing
+    for (int i = 0; i < 1000; i++) {
+        index.bump(new UnvName("graph.js"));
+    }
+    blAssert(index.current(new UnvName("graph.js")).equals("graph-51000.js"));
+    blAssert(index.current(new UnvName("script.js")).equals("script-50000.js"));
+}
+
+
+static void metricsTest() {
+    /// After a run, the metrics of its phases, docs and file ops are in the Prometheus textfile
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    var settings = new Settings();
+    settings.metricsFile = "/var/lib/node_exporter/blog.prom";
+    Blog b = new Blog(fs, settings);
+    b.run();
+
+    String prom = fs.readTextFile(Dir.ofString("/var/lib/node_exporter"), "blog.prom");
+    blAssert(prom.contains("# TYPE blog_docs_rebuilt_total counter\n"));
+    blAssert(prom.contains("blog_docs_rebuilt_total{cause=\"created\"} 1\n"));
+    blAssert(prom.contains("blog_phase_seconds{phase=\"create\"} "));
+    blAssert(prom.contains("blog_run_success 1.0\n"));
+    blAssert(prom.contains("blog_doc_render_seconds_bucket{le=\"+Inf\"} 1\n"));
+    blAssert(prom.contains("blog_fs_op_seconds_count{op=\"move\"} "));
+    blAssert(b.metrics.counter("blog_fs_ops_total", Metrics.label("op", "move")) >= 3);
+    blAssert(b.metrics.counter("blog_fs_written_bytes_total", "") > 0);
+    blAssert(b.metrics.counter("blog_assets_moved_total", "") == 2); // local.js and myImg.png
+
+    // A new text alone renames the temp files of the catalog and journal, but moves no asset
+    fs.saveOverwriteFile(ingestDirOf("a.first"), "i.html", "<html><head></head><body>New</body></html>");
+    Blog textOnly = new Blog(fs, settings);
+    textOnly.run();
+    blAssert(textOnly.metrics.counter("blog_fs_ops_total", Metrics.label("op", "move")) > 0);
+    blAssert(textOnly.metrics.counter("blog_assets_moved_total", "") == 0);
+}
+
+
+static void jfrEventsTest() {
+    /// A recording of a run has its phases, its renders and its file ops
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    try (var recording = new jdk.jfr.Recording()) {
+        recording.enable("tech.sozonov.blog.Phase");
+        recording.enable("tech.sozonov.blog.Render");
+        recording.enable("tech.sozonov.blog.FileOp");
+        recording.start();
+        new Blog(fs).run();
+        recording.stop();
+        var dump = Files.createTempFile("blog", ".jfr");
+        recording.dump(dump);
+        var events = jdk.jfr.consumer.RecordingFile.readAllEvents(dump);
+        Files.delete(dump);
+
+        blAssert(events.stream().anyMatch(e -> e.getEventType().getName().endsWith(".Phase")
+                && e.getString("phase").equals("create")));
+        blAssert(events.stream().anyMatch(e -> e.getEventType().getName().endsWith(".Render")
+                && e.getString("targetDir").equals("a/first")
+                && e.getString("cause").equals("created") && e.getLong("outputBytes") > 0));
+        blAssert(events.stream().anyMatch(e -> e.getEventType().getName().endsWith(".FileOp")
+                && e.getString("op").equals("write")
+                && e.getString("path").endsWith("a/first/i.html")));
+    } catch (java.io.IOException e) {
+        throw new RuntimeException(e);
+    }
+}
+
+
+static void logTest() {
+    /// Debug lines aren't even built when off, and every run ends with a summary line. An unknown
+    /// level is only warned about
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    var oldOut = System.out;
+    var captured = new java.io.ByteArrayOutputStream();
+    var oldLevel = Log.level;
+    Log.flush();
+    System.setOut(new java.io.PrintStream(captured, true));
+    try {
+        Log.level = Log.Level.INFO;
+        boolean[] built = { false };
+        Log.debug(() -> {
+            built[0] = true;
+            return "hidden";
+        });
+        new Blog(fs).run();
+        Log.flush();
+        String out = captured.toString();
+        blAssert(!built[0]);
+        blAssert(out.contains(" INFO run result=success "));
+        blAssert(out.contains(" created=1 "));
+        blAssert(!out.contains(" DEBUG "));
+
+        blAssert(Log.parseLevel("loud") == Log.Level.INFO && Log.parseLevel(" warn") == Log.Level.WARN);
+        Log.flush();
+        blAssert(captured.toString().contains(" WARN unknown BLOG_LOG_LEVEL=loud, using INFO"));
+    } finally {
+        System.setOut(oldOut);
+        Log.level = oldLevel;
+    }
+}
+
+
+static void planTest() {
+    /// A dry run describes the run without touching a file, and the run then does just that.
+    /// Its estimate doesn't read the docs that are to be rebuilt
+    L<String> docReads = new L();
+    var fs = new MockFileSys() {
+        @Override
+        public synchronized String readTextFile(Dir dir, String fN) {
+            if (fN.equals("i.html") && dir.cont.startsWith(blogDir.cont + "/")) {
+                docReads.add(dir.cont);
+            }
+            return super.readTextFile(dir, fN);
+        }
+
+        @Override
+        public synchronized ByteBuffer mapFile(Dir dir, String fN) {
+            if (fN.equals("i.html") && dir.cont.startsWith(blogDir.cont + "/")) {
+                docReads.add(dir.cont);
+            }
+            return super.mapFile(dir, fN);
+        }
+    };
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.first"));
+    fs.saveOverwriteFile(ingestDir, "style.css", "v2 of style.css");
+    var b = new Blog(fs);
+
+    String plan = b.dryRun();
+    for (String op : new String[] { "write", "move", "delete", "delete_dir" }) {
+        blAssert(b.metrics.counter("blog_fs_ops_total", Metrics.label("op", op)) == 0);
+    }
+    blAssert(plan.contains(" core_bumps=1 ") && plan.contains(" created=1 ")
+            && plan.contains(" written_files=1 "));
+    blAssert(fs.listFiles(new Dir(blogDir, new Subfolder("a/first"))).isEmpty());
+
+    b.run();
+    blAssert(fs.listFiles(new Dir(blogDir, new Subfolder("a/first"))).any(x -> x.name.equals("i.html")));
+    blAssert(b.catalog.coreVersions.get("style.css").equals("style-2.css"));
+
+    fs.saveOverwriteFile(ingestDir, "style.css", "v3 of style.css");
+    docReads.clear();
+    plan = new Blog(fs).dryRun();
+    blAssert(docReads.isEmpty());
+    int docBytes = fs.readBinaryFile(new Dir(blogDir, new Subfolder("a/first")), "i.html").length;
+    blAssert(plan.contains(" core=1 ") && plan.contains(" written_bytes_est=" + docBytes + " "));
+}
+
+
+static void journalTest() {
+    /// A run that dies after its first doc, then one that runs out of time right away, and
+    /// the third finishes the docs without redoing the first
+    int[] docWrites = { 0 };
+    int[] failAfter = { 1 };
+    var fs = new MockFileSys() {
+        @Override
+        public synchronized boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+            if (fN.equals("i.html")) {
+                if (docWrites[0] == failAfter[0]) {
+                    throw new RuntimeException("crash");
+                }
+                docWrites[0]++;
+            }
+            return super.saveOverwriteFile(dir, fN, parts);
+        }
+    };
+    seedCoreFiles(fs);
+    L<String> names = L.of("first", "second", "third");
+    for (String name : names) {
+        createSimpleDocForTest(fs, ingestDirOf("a." + name));
+    }
+    new Blog(fs).run();
+    blAssert(docWrites[0] == 1);
+    blAssert(fs.readTextFile(blogDir, journalFile).contains("\ndone\ta/"));
+    String plan = new Blog(fs).dryRun();
+    blAssert(plan.startsWith("plan resuming=") && plan.contains(" created=2 "));
+
+    failAfter[0] = -1;
+    var paused = new Blog(fs);
+    paused.onPhase = phase -> {
+        if (phase.equals("create")) {
+            paused.deadlineNs = System.nanoTime() - 1;
+        }
+    };
+    paused.run();
+    blAssert(paused.paused && docWrites[0] == 1);
+    blAssert(paused.metrics.counter("blog_runs_total", Metrics.label("result", "paused")) == 1);
+
+    var b = new Blog(fs);
+    b.run();
+    blAssert(docWrites[0] == 3);
+    blAssert(fs.readTextFile(blogDir, journalFile).isEmpty());
+    blAssert(b.catalog.docs.size() == 3);
+    for (String name : names) {
+        Dir target = new Dir(blogDir, new Subfolder("a/" + name));
+        blAssert(fs.readTextFile(target, "i.html").contains("myImg.png"));
+        blAssert(fs.listFiles(ingestDirOf("a." + name)).isEmpty());
+    }
+}
+
+
+static void lazyContentTest() {
+    /// The plan has only the sizes of the uploads, which are read as the docs go through the pipeline
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    int count = new Settings().docsInFlight * 4 + 10;
+    for (int i = 0; i < count; i++) {
+        createSimpleDocForTest(fs, ingestDirOf("a.doc" + i));
+    }
+    var settings = new Settings();
+    settings.renderThreads = 4;
+    Blog b = new Blog(fs, settings);
+    b.startRun();
+    Plan plan = b.plan();
+    blAssert(plan.ing.createDocs.size() == count);
+    int htmlBytes = fs.readTextFile(ingestDirOf("a.doc0"), "i.html").length();
+    blAssert(!plan.ing.createDocs.any(x -> !x.isUnread || x.newContentBytes != htmlBytes));
+
+    b.run();
+    blAssert(b.catalog.docs.size() == count);
+    blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder("a/doc" + (count - 1))), "i.html")
+               .contains("Hello world!"));
+}
+
+
+static void docPipelineTest() {
+    /// With one doc in flight, the pipeline finishes each doc, with its moves, write and cleanup,
+    /// before it starts the next. A failed render stops it there: the docs before it are complete,
+    /// the ones after it untouched, and the next run resumes from the failed one. The creates
+    /// come before the nav, and the nav before the updates
+    L<String> events = new L();
+    var fs = new MockFileSys() {
+        @Override
+        public synchronized boolean saveOverwriteFile(Dir dir, String fN, ByteBuffer[] parts) {
+            if (fN.equals("i.html")) {
+                events.add("write " + dir.cont.substring(blogDir.cont.length() + 1));
+            }
+            return super.saveOverwriteFile(dir, fN, parts);
+        }
+
+        @Override
+        public synchronized boolean moveFileWithRename(Dir dir, String fN, Dir targetDir,
+                                                       String newName) {
+            if (dir.cont.startsWith(ingestDir.cont) && !targetDir.cont.equals(blogDir.cont)) {
+                events.add("move " + targetDir.cont.substring(blogDir.cont.length() + 1));
+            } else if (newName.matches("nav-[0-9]+\\.json")) {
+                events.add("nav");
+            }
+            return super.moveFileWithRename(dir, fN, targetDir, newName);
+        }
+
+        @Override
+        public synchronized boolean deleteDirIfExists(Dir dir) {
+            if (dir.cont.startsWith(ingestDir.cont + "/")) {
+                events.add("delete " + dir.cont.substring(ingestDir.cont.length() + 1).replace('.', '/'));
+            }
+            return super.deleteDirIfExists(dir);
+        }
+    };
+    var settings = new Settings();
+    settings.renderThreads = 2; // turns the pipeline on
+    settings.docsInFlight = 1;
+    settings.externalNav = true; // so that the nav is published between the creates and updates
+    seedCoreFiles(fs);
+    createSimpleDocForTest(fs, ingestDirOf("a.old"));
+    new Blog(fs, settings).run();
+
+    createSimpleDocForTest(fs, ingestDirOf("a.old"));
+    fs.saveOverwriteFile(ingestDirOf("a.old"), "local.js", "Local script v2");
+    for (int i = 0; i < 5; i++) {
+        createSimpleDocForTest(fs, ingestDirOf("a.doc" + i));
+    }
+    Blog b = new Blog(fs, settings);
+    b.startRun();
+    L<String> order = b.plan().ing.createDocs.trans(x -> x.targetDir.cont);
+    blAssert(order.size() == 5);
+    String failing = order.get(2);
+    Dir failingSource = ingestDirOf(failing.replace('/', '.'));
+    String goodDoc = fs.readTextFile(failingSource, "i.html");
+    fs.saveOverwriteFile(failingSource, "i.html", "<html><body></body></html><img alt=\"unclosed");
+    events.clear();
+    b.run();
+
+    for (int i = 0; i < 2; i++) {
+        String doc = order.get(i);
+        int indFirst = events.findIndex(x -> x.endsWith(" " + doc));
+        blAssert(events.get(indFirst).equals("move " + doc));
+        blAssert(events.get(indFirst + 1).equals("move " + doc)); // local.js and myImg.png
+        blAssert(events.get(indFirst + 2).equals("write " + doc));
+        blAssert(events.get(indFirst + 3).equals("delete " + doc));
+        blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder(doc)), "i.html").contains("Hello world!"));
+    }
+    blAssert(!events.any(x -> x.equals("write " + failing) || x.equals("delete " + failing)));
+    for (int i = 3; i < 5; i++) {
+        String doc = order.get(i);
+        blAssert(!events.any(x -> x.endsWith(" " + doc)));
+        blAssert(fs.listFiles(ingestDirOf(doc.replace('/', '.'))).size() == 3);
+    }
+    blAssert(!events.any(x -> x.equals("nav") || x.equals("write a/old")));
+
+    fs.saveOverwriteFile(failingSource, "i.html", goodDoc);
+    events.clear();
+    new Blog(fs, settings).run();
+    blAssert(!events.any(x -> x.endsWith(" " + order.get(0)) || x.endsWith(" " + order.get(1))));
+    int indNav = events.findIndex(x -> x.equals("nav"));
+    for (int i = 2; i < 5; i++) {
+        String doc = order.get(i);
+        blAssert(events.findIndex(x -> x.equals("write " + doc)) < indNav);
+        blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder(doc)), "i.html").contains("Hello world!"));
+    }
+    blAssert(indNav < events.findIndex(x -> x.equals("write a/old")));
+    blAssert(fs.readTextFile(new Dir(blogDir, new Subfolder("a/old")), "i.html").contains("local-2.js"));
+    blAssert(fs.readTextFile(blogDir, journalFile).isEmpty());
+}
+
+
+static void settingsBoundsTest() {
+    /// Thread and permit counts below 1 fall back to their defaults instead of hanging the run
+    blAssert(Settings.positiveOr("BLOG_DOCS_IN_FLIGHT", 0, 64) == 64);
+    blAssert(Settings.positiveOr("BLOG_IO_THREADS", -3, 1) == 1);
+    blAssert(Settings.positiveOr("BLOG_RENDER_THREADS", 4, 1) == 4);
+}
+
+
+static void renderCacheTest() {
+    /// A doc whose source and dependencies haven't changed isn't rendered again, and a render
+    /// that produces the bytes already on disk isn't written
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    fs.saveOverwriteFile(blogDir, "graph.js", "v1 of graph");
+    Subfolder graphSource = new Subfolder("a.withGraph");
+    fs.saveOverwriteFile(new Dir(ingestDir, graphSource), "i.html", graphDoc);
+    new Blog(fs).run();
+    Dir graphDir = new Dir(blogDir, new Subfolder("a/withGraph"));
+    MockFile rendered = fs.fs.get(graphDir.cont).first(x -> x.name.equals("i.html")).get();
+    blAssert(fs.readTextFile(blogDir, catalogFile).contains("render\ta/withGraph\t"));
+
+    // The same upload again: a cache hit, so the doc is neither rendered nor written
+    fs.saveOverwriteFile(new Dir(ingestDir, graphSource), "i.html", graphDoc);
+    var b = new Blog(fs);
+    b.run();
+    blAssert(fs.fs.get(graphDir.cont).first(x -> x.name.equals("i.html")).get() == rendered);
+    blAssert(!fs.dirExists(new Dir(ingestDir, graphSource)));
+    blAssert(b.metrics.counter("blog_render_cache_hits_total", "") == 1);
+
+    // Without the cache it's rendered, but into the same bytes, so still not written
+    fs.deleteIfExists(blogDir, catalogFile);
+    fs.saveOverwriteFile(new Dir(ingestDir, graphSource), "i.html", graphDoc);
+    b = new Blog(fs);
+    b.run();
+    blAssert(fs.fs.get(graphDir.cont).first(x -> x.name.equals("i.html")).get() == rendered);
+    blAssert(b.metrics.counter("blog_docs_unchanged_total", "") == 1);
+
+    // A new version of a script the doc includes is a miss
+    fs.saveOverwriteFile(ingestDir, "graph.js", "v2 of graph");
+    new Blog(fs).run();
+    blAssert(fs.readTextFile(graphDir, "i.html").contains("/blog/graph-2.js"));
+}
+
+
+static void byteRenderTest() {
+    /// Rendering from the bytes of the files gives the same doc as from their decoded text, and
+    /// a doc mapped from a file can be rendered over that same file
+    var blog = new Blog(new MockFileSys());
+    for (int i = 0; i < fixedCoreFiles.length; i++) {
+        blog.coreVersions[i] = fixedCoreFiles[i];
+    }
+    var localFiles = new LocalFiles();
+    localFiles.versions.put(new UnvName("img.png"), "img-2.png");
+    var ing = new Ingestion();
+    ing.allSubfs.add(new Subfolder("a/b"));
+    ing.finalize();
+    String newDoc = "<html><head></head><body><p>Grüße, 世界</p><img src=\"img.png\"></body></html>";
+    var create = new CreateUpdate(new Subfolder("a.b"), new Subfolder("a/b"), localFiles, newDoc);
+    String fromText = decode(blog.buildDocument(create, "", "2024-01-01", ing));
+    blAssert(fromText.contains("Grüße, 世界") && fromText.contains("src=\"img-2.png\""));
+    blAssert(decode(blog.buildDocument(create, "", HtmlBytes.of(newDoc), "2024-01-01", ing))
+            .equals(fromText));
+
+    var update = new CreateUpdate(null, new Subfolder("a/b"), localFiles, false);
+    String big = fromText.replace(contentStartMarker, contentStartMarker + "<p>"
+                                  + "ü".repeat(mapThreshold) + "</p>");
+    String expected = decode(blog.buildDocument(update, big, "2024-01-02", ing));
+    try {
+        Dir dir = Dir.ofString(Files.createTempDirectory("blogMap").toString());
+        var fs = new BlogFileSys();
+        fs.saveOverwriteFile(dir, "i.html", big);
+        ByteBuffer mapped = fs.mapFile(dir, "i.html");
+        blAssert(mapped.isDirect());
+        fs.saveOverwriteFile(dir, "i.html",
+                blog.buildDocument(update, new HtmlBytes(mapped), "", "2024-01-02", ing));
+        blAssert(fs.readTextFile(dir, "i.html").equals(expected));
+        blAssert(fs.mapFile(dir, "missing.html").remaining() == 0);
+        fs.deleteIfExists(dir, "i.html");
+        fs.deleteDirIfExists(dir);
+    } catch (java.io.IOException e) {
+        throw new RuntimeException(e);
+    }
+}
+
+
+static void prunedNavTest() {
+    /// With the pruned nav, a doc embeds only its branch with the breadcrumbs to itself, and the
+    /// full nav is published for the rest
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    for (String doc : new String[] { "a.b.first", "a.b.second", "a.c.third", "d.fourth" }) {
+        createSimpleDocForTest(fs, ingestDirOf(doc));
+    }
+    var settings = new Settings();
+    settings.prunedNav = true;
+    new Blog(fs, settings).run();
+
+    String doc = fs.readTextFile(new Dir(blogDir, new Subfolder("a/b/first")), "i.html");
+    blAssert(doc.contains("\"crumbs\": [0, 0, 0]"));
+    blAssert(doc.contains("[\"a\", [[\"b\", [[\"a/b/first\", []], [\"a/b/second\", []]]], "
+                          + "[\"c\", null]]], [\"d\", null]"));
+    blAssert(!doc.contains("a/c/third") && !doc.contains("d/fourth"));
+    blAssert(fs.readTextFile(blogDir, "nav.json").contains("a/c/third"));
+
+    var crumbs = new L<Integer>();
+    Ingestion ing = new Ingestion();
+    ing.allSubfs.addAll(L.of(new Subfolder("a/b/first"), new Subfolder("a/c/third")));
+    ing.finalize();
+    blAssert(ing.nav.toPrunedJson(new Subfolder("a/c/third"), crumbs).contains("[\"b\", null]"));
+    blAssert(crumbs.size() == 3 && crumbs.get(1) == 1 && crumbs.get(2) == 0);
+    crumbs = new L();
+    ing.nav.toPrunedJson(new Subfolder("x/missing"), crumbs);
+    blAssert(crumbs.size() == 0);
+}
+
+
+static String decode(ByteBuffer[] parts) {
+    var result = new StringBuilder();
+    for (ByteBuffer part : parts) {
+        result.append(StandardCharsets.UTF_8.decode(part.duplicate()));
+    }
+    return result.toString();
+}
+
+
 static void createNewDoc() {
     /// With core files in place, create a simple first doc
     var fs = new MockFileSys();
+    seedCoreFiles(fs);
     Blog b = new Blog(fs);
     Dir docDir = new Dir(ingestDir, new Subfolder("a.b.c"));
     createSimpleDocForTest(fs, docDir);
     createSimpleDocForTest(fs, new Dir(ingestDir, new Subfolder("other.d")));
 
-    b.ingestDocs();
+    b.run();
 
     String nowStamp = formatter.format(Instant.now());
     String expectedContent = """
@@ -432,6 +1657,7 @@ static void createNewDoc() {
 static void updateDoc() {
     /// Update a document with new content and new versions of local script and image
     var fs = new MockFileSys();
+    seedCoreFiles(fs);
     Blog b = new Blog(fs);
 
     Dir pathExistingDoc = new Dir(blogDir, new Subfolder("a/b/c"));
@@ -449,7 +1675,7 @@ static void updateDoc() {
         """);
     Dir updateDir = new Dir(ingestDir, new Subfolder("a.b.c"));
     createSimpleDocForTest(fs, updateDir);
-    b.ingestDocs();
+    b.run();
 
     String nowStamp = formatter.format(Instant.now());
     String expectedContent = """
@@ -462,15 +1688,42 @@ static void updateDoc() {
     String cont = fs.readTextFile(pathExistingDoc, "i.html");
 
 //    print("extract");
-//    String extract = Blog.extractContent(cont, true);
+    String extract = Blog.extractContent(cont, true);
 //    print(extract);
 //    print("expect");
 //    print(expectedContent);
     blAssert(extract.equals(expectedContent));
 }
 
+static L<String> renderSiteForTest(int renderThreads) {
+    /// Ingests the same small site and returns the contents of all the resulting docs
+    var fs = new MockFileSys();
+    seedCoreFiles(fs);
+    var settings = new Settings();
+    settings.renderThreads = renderThreads;
+    Blog b = new Blog(fs, settings);
+    for (int i = 0; i < 8; i++) {
+        createSimpleDocForTest(fs, new Dir(ingestDir, new Subfolder("topic" + (i % 3) + ".doc" + i)));
+    }
+    b.run();
+
+    L<String> result = new L();
+    for (var subf : fs.listSubfoldersContaining(blogDir, "i.html")) {
+        result.add(subf.cont + "\n" + fs.readTextFile(new Dir(blogDir, subf), "i.html"));
+    }
+    return result;
+}
+
+
+static void parallelRenderTest() {
+    /// The parallel render path must produce exactly the same docs as the sequential one
+    assertArrsEqual(renderSiteForTest(4), renderSiteForTest(1));
+}
+
 public static void main(String[] args) {
     TestResults counters = new TestResults();
+    // Only the failures of the tests themselves are printed. The tests of the log set its level
+    Log.level = Log.Level.OFF;
 
 //~    runTest(Test::testSaveFile, counters);
 //~    runTest(Test::testFilePrefixes, counters);
@@ -487,6 +1740,38 @@ public static void main(String[] args) {
 //~    runTest(Test::parseContentTest, counters);
 //~    runTest(Test::createNewDoc, counters);
     runTest(Test::updateDoc, counters);
+    runTest(Test::parallelRenderTest, counters);
+    runTest(Test::asyncMoveTest, counters);
+    runTest(Test::catalogTest, counters);
+    runTest(Test::unstampedCatalogTest, counters);
+    runTest(Test::unchangedAssetTest, counters);
+    runTest(Test::coreAliasTest, counters);
+    runTest(Test::aliasRescanTest, counters);
+    runTest(Test::globalDependentsTest, counters);
+    runTest(Test::externalNavTest, counters);
+    runTest(Test::navRescanTest, counters);
+    runTest(Test::flagsRescanTest, counters);
+    runTest(Test::htmlScanTest, counters);
+    runTest(Test::templateTest, counters);
+    runTest(Test::warmRunsTest, counters);
+    runTest(Test::idleRunTest, counters);
+    runTest(Test::quietPeriodTest, counters);
+    runTest(Test::daemonTest, counters);
+    runTest(Test::staticServerTest, counters);
+    runTest(Test::gzipSiblingsTest, counters);
+    runTest(Test::gzipSwitchTest, counters);
+    runTest(Test::versionIndexTest, counters);
+    runTest(Test::metricsTest, counters);
+    runTest(Test::jfrEventsTest, counters);
+    runTest(Test::logTest, counters);
+    runTest(Test::planTest, counters);
+    runTest(Test::journalTest, counters);
+    runTest(Test::lazyContentTest, counters);
+    runTest(Test::docPipelineTest, counters);
+    runTest(Test::settingsBoundsTest, counters);
+    runTest(Test::renderCacheTest, counters);
+    runTest(Test::byteRenderTest, counters);
+    runTest(Test::prunedNavTest, counters);
 
     if (counters.countFailed > 0)  {
         System.out.println("Failed " + counters.countFailed + " tests");
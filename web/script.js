@@ -2,6 +2,7 @@ const homePath = `/blog/`;
 let cLoc = []
 let nav = []
 let cAddress = ``
+let fullNavUrl = null // set while the nav is only this page's branch of it
 
 function toggleNavBar() {
     const divider = document.getElementById(`_divider`)
@@ -35,14 +36,27 @@ function hideNavBar() {
     document.getElementById(`_divider`).classList.add(`_hidden`)
 }
 
-function populateMenu(isFirstLoad) {
+async function loadNav(navState) {
+    // The nav is either embedded in the page, or it's in a versioned file behind a small pointer.
+    // The pointer is revalidated on every load, the versioned file is cached as usual
+    if (navState.nav || !navState.navUrl) return navState.nav
+    const pointer = await (await fetch(navState.navUrl, {cache: `no-cache`})).json()
+    return (await fetch(pointer.src)).json()
+}
+
+async function populateMenu(isFirstLoad) {
     if (isFirstLoad === true) {
         const navStateContainer = document.getElementById(`_navState`)
         const navState = JSON.parse(navStateContainer.textContent)
-        nav = navState.nav
+        nav = await loadNav(navState)
         cAddress = navState.address
         if (!nav) return
-        cLoc = makeBreadcrumbs(nav, cAddress) 
+        if (navState.crumbs) {
+            fullNavUrl = navState.navUrl
+            cLoc = navState.crumbs
+        } else {
+            cLoc = makeBreadcrumbs(nav, cAddress)
+        }
 
         if (window.matchMedia(`only screen and (max-width: 800px)`).matches) {
             hideNavBar()
@@ -66,7 +80,7 @@ function populateMenu(isFirstLoad) {
             nameUp = cNode[0]
         } else if (i == cLoc.length - 1) {
             indLast = cLoc[i]
-            leafMode = cNode[1].length === 0
+            leafMode = isLeaf(cNode)
         }
     }
     if (leafMode === true) {
@@ -89,7 +103,7 @@ function populateMenu(isFirstLoad) {
     for (let i = 0; i < listOpen.length; ++i) {
         const cParent = document.createElement(`div`)
         const link = document.createElement(`a`)
-        if (listOpen[i][1].length == 0) {
+        if (isLeaf(listOpen[i])) {
             if (i == indLast && leafMode === true) {
                 let child = document.createElement(`div`)
                 child.style.border = `1px solid hsl(75, 100%, 50%)`
@@ -113,18 +127,25 @@ function populateMenu(isFirstLoad) {
     }
 }
 
+function isLeaf(node) {
+    // A folder of a pruned nav has `null` children until the full nav is loaded
+    return node[1] !== null && node[1].length === 0
+}
+
 function makeBreadcrumbs(navTree, cAddress) {
+    // Folders are named by one part of the address, and the docs in them by the whole address
     const spl = cAddress.split(`/`)
     const result = []
-    if (navTree[0] !== `` || navTree[1].length === 0) {
-        return result
-    }
-    var curr = navTree[1]
-    for (let i = 0; i < spl.length; i++)  {
-        result.push(curr.indexOf(x => x[0] === spl[i]))
-        curr = curr[result[i]][1]
+    let curr = navTree
+    for (let i = 0; i < spl.length - 1; i++)  {
+        const ind = curr.findIndex(x => x[0] === spl[i] && !isLeaf(x))
+        if (ind < 0) {
+            return []
+        }
+        result.push(ind)
+        curr = curr[ind][1]
     }
-    let leafIndex = curr.indexOf(x => x[0] === cAddress)
+    const leafIndex = curr.findIndex(x => x[0] === cAddress && isLeaf(x))
     if (leafIndex < 0) {
         return []
     }
@@ -132,6 +153,20 @@ function makeBreadcrumbs(navTree, cAddress) {
     return result
 }
 
+async function loadFullNav() {
+    // Leaving the branch of a pruned nav loads the full one. The branch is at the same indices
+    // in it, so `cLoc` stays valid
+    let cNode = [``, nav]
+    for (const ind of cLoc) {
+        cNode = cNode[1][ind]
+        if (cNode[1] === null) {
+            nav = await loadNav({navUrl: fullNavUrl})
+            fullNavUrl = null
+            return
+        }
+    }
+}
+
 function goToPage(path) {
     window.location = path;
 }
@@ -164,17 +199,19 @@ function moveUp (times) {
     populateMenu(false);
 }
 
-function moveDown(indDown) {
+async function moveDown(indDown) {
     cLoc.push(indDown)
+    if (fullNavUrl !== null) await loadFullNav()
     populateMenu(false)
 }
 
-function strafe(indStrafe) {
+async function strafe(indStrafe) {
     if (cLoc.length == 0) {
         return
     }
     cLoc.pop()
     cLoc.push(indStrafe)
+    if (fullNavUrl !== null) await loadFullNav()
     populateMenu(false)
 }
 